@@ -0,0 +1,53 @@
+package ru.alejov.media.gallery;
+
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Catalog records shaped like a phone camera roll: dated names, one path, EXIF metadata for images.
+ * The same seed gives the same records, so results stay comparable across runs.
+ */
+final class BenchmarkMedia {
+    private static final long START = Timestamp.valueOf("2015-01-01 00:00:00").getTime();
+    private static final DateTimeFormatter STAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final String[] PREFIXES = {"IMG_", "VID_", "PXL_", "Screenshot_", "DSC_"};
+
+    private BenchmarkMedia() {
+    }
+
+    static List<Media> generate(int count) {
+        Random random = new Random(42);
+        List<Media> mediaList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Timestamp createdAt = new Timestamp(START + (long) (random.nextDouble() * 8 * 365 * 24 * 3600 * 1000L) / 1000 * 1000);
+            String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+            String stamp = STAMP_FORMAT.format(createdAt.toLocalDateTime());
+            boolean video = "VID_".equals(prefix);
+            String name = prefix + stamp + "_" + i + (video ? ".mp4" : ".jpg");
+            Map<String, String> metadata = Collections.emptyMap();
+            if (!video) {
+                metadata = new TreeMap<>();
+                metadata.put(MetaTag.DateTimeOriginal.name(), stamp.substring(0, 8) + " " + stamp.substring(9, 15));
+                metadata.put(MetaTag.ImageWidth.name(), "4032");
+                metadata.put(MetaTag.ImageLength.name(), "3024");
+                metadata.put(MetaTag.Make.name(), "Google");
+                metadata.put(MetaTag.Model.name(), "Pixel 7");
+                metadata.put(MetaTag.Orientation.name(), "1");
+            }
+            String path = "/storage/emulated/0/DCIM/Camera/" + name;
+            Media media = new Media(name, createdAt, createdAt, Collections.singletonMap("phone", path),
+                                    random.nextBoolean() ? String.format("%032x", random.nextLong()) : null,
+                                    1_000_000 + random.nextInt(8_000_000), video ? "v" : "i", metadata, Paths.get(path));
+            media.setQuickHash(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+            mediaList.add(media);
+        }
+        return mediaList;
+    }
+}
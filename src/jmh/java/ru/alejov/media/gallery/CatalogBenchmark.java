@@ -0,0 +1,72 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-catalog costs of a fill: reading an export, sorting it for the merge and encoding rows for COPY.
+ * Each operation handles all {@code count} generated records; divide the score by count for a per-record cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CatalogBenchmark {
+
+    @Param("100000")
+    public int count;
+
+    private List<Media> shuffled;
+    private byte[] json;
+    private StringBuilder row;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        List<Media> mediaList = BenchmarkMedia.generate(count);
+        Collections.shuffle(mediaList, new Random(42));
+        shuffled = mediaList;
+        json = new ObjectMapper().writeValueAsBytes(mediaList);
+        row = new StringBuilder(1024);
+    }
+
+    //streaming parse and sort, as for an incremental fill from an export
+    @Benchmark
+    public List<Media> parseExport() throws IOException {
+        return JsonIOHelper.parseMedia(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public List<Media> sortByName() {
+        List<Media> mediaList = new ArrayList<>(shuffled);
+        mediaList.sort(Media::compareTo);
+        return mediaList;
+    }
+
+    //COPY text rows, metadata and paths serialized to JSON as in PgHelper
+    @Benchmark
+    public long encodeCopyRows() throws JsonProcessingException {
+        long length = 0;
+        long ord = 0;
+        for (Media media : shuffled) {
+            row.setLength(0);
+            PgHelper.appendCopyRow(row, ++ord, media).append('\n');
+            length += row.length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,56 @@
+package ru.alejov.media.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getCreateDate runs twice per scanned file: from the name in the walk, from EXIF after metadata extraction.
+ * The names cover the date-time match, EXIF with a date-only name, and no date at all.
+ * The legacy* variants run the former regex implementation on the same input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DateUtilsBenchmark {
+
+    @Param({"IMG_20211002_143434.jpg", "Screenshot_20200101-101010.png", "DSC_0001.JPG"})
+    public String fileName;
+
+    private Map<String, String> tags;
+
+    @Setup
+    public void setUp() {
+        tags = Collections.singletonMap(MetaTag.DateTimeOriginal.name(), "20190506 070809");
+    }
+
+    @Benchmark
+    public Timestamp fromFileName() {
+        return DateUtils.getCreateDate(Collections.emptyMap(), fileName);
+    }
+
+    @Benchmark
+    public Timestamp fromExif() {
+        return DateUtils.getCreateDate(tags, fileName);
+    }
+
+    @Benchmark
+    public Timestamp legacyFromFileName() {
+        return LegacyDateUtils.getCreateDate(Collections.emptyMap(), fileName);
+    }
+
+    @Benchmark
+    public Timestamp legacyFromExif() {
+        return LegacyDateUtils.getCreateDate(tags, fileName);
+    }
+}
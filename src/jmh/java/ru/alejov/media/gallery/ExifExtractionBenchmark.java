@@ -0,0 +1,83 @@
+package ru.alejov.media.gallery;
+
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.ImagingException;
+import org.apache.commons.imaging.common.ImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputDirectory;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metadata is parsed once in setup, both benchmarks measure only the conversion into the MetaTag map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExifExtractionBenchmark {
+
+    private ImageMetadata imageMetadata;
+    private TiffImageMetadata exif;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), "jpg", image);
+        TiffOutputSet outputSet = new TiffOutputSet();
+        TiffOutputDirectory root = outputSet.getOrCreateRootDirectory();
+        root.add(TiffTagConstants.TIFF_TAG_MAKE, "Canon, Inc.");
+        root.add(TiffTagConstants.TIFF_TAG_MODEL, "EOS 5D");
+        root.add(TiffTagConstants.TIFF_TAG_SOFTWARE, "GIMP 2.10");
+        root.add(TiffTagConstants.TIFF_TAG_ORIENTATION, (short) 1);
+        root.add(TiffTagConstants.TIFF_TAG_ARTIST, "Someone");
+        root.add(TiffTagConstants.TIFF_TAG_COPYRIGHT, "Copyright");
+        TiffOutputDirectory exifDirectory = outputSet.getOrCreateExifDirectory();
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL, "2019:05:06 07:08:09");
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_DATE_TIME_DIGITIZED, "2019:05:06 07:08:09");
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH, (short) 64);
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH, (short) 48);
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_ISO, (short) 100);
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_LENS_MODEL, "EF 24-105mm f/4L IS USM");
+        outputSet.setGpsInDegrees(37.6173, 55.7558);
+        ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        new ExifRewriter().updateExifMetadataLossless(image.toByteArray(), withExif, outputSet);
+        imageMetadata = Imaging.getMetadata(withExif.toByteArray());
+        exif = ((JpegImageMetadata) imageMetadata).getExif();
+    }
+
+    @Benchmark
+    public Map<String, String> legacyItemsParse() {
+        Map<String, String> metadata = new TreeMap<>();
+        for (ImageMetadata.ImageMetadataItem item : imageMetadata.getItems()) {
+            MetadataUtils.Tag tag = MetadataUtils.Tag.parse(Objects.toString(item));
+            if (tag != null) {
+                metadata.put(tag.toString(), tag.toString());
+            }
+        }
+        return metadata;
+    }
+
+    @Benchmark
+    public Map<String, String> typedTiffFields() throws ImagingException {
+        return MetadataUtils.getTiffMetadata(exif);
+    }
+}
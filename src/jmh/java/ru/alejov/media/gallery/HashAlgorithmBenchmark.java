@@ -0,0 +1,46 @@
+package ru.alejov.media.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes a 1 MB direct buffer (the HashUtils read block) already in memory, so only the CPU cost is measured.
+ * MB/s = 1_000_000 / score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HashAlgorithmBenchmark {
+
+    @Param({"MD5", "XXH64"})
+    public HashAlgorithm algorithm;
+
+    private HashAlgorithm.Hasher hasher;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = new byte[1024 * 1024];
+        new Random(42).nextBytes(bytes);
+        buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        hasher = algorithm.newHasher();
+    }
+
+    @Benchmark
+    public byte[] hashBlock() {
+        buffer.rewind();
+        hasher.update(buffer);
+        return hasher.digest();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.alejov.media.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes a file of {@code fileSize} bytes through HashUtils. The file is written in setup and stays in the page cache,
+ * so the score is read syscalls plus hashing, not disk. Unlike HashAlgorithmBenchmark this includes opening the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HashUtilsBenchmark {
+
+    //thumbnail-sized JPEG, phone photo, short video
+    @Param({"65536", "4194304", "67108864"})
+    public int fileSize;
+
+    private Path file;
+
+    @State(Scope.Benchmark)
+    public static class Algorithm {
+        @Param({"MD5", "XXH64"})
+        public HashAlgorithm algorithm;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] bytes = new byte[fileSize];
+        new Random(42).nextBytes(bytes);
+        file = Files.createTempFile("hash-benchmark", ".bin");
+        Files.write(file, bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public String fullHash(Algorithm algorithm) {
+        return HashUtils.getHash(file, algorithm.algorithm);
+    }
+
+    @Benchmark
+    public String quickHash() {
+        return HashUtils.getQuickHash(file);
+    }
+}
@@ -0,0 +1,58 @@
+package ru.alejov.media.gallery;
+
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Map;
+
+/**
+ * The object-per-field Media layout kept as the reference for MediaFootprintBenchmark: two Timestamps,
+ * the paths and metadata maps as passed in, an eagerly built sort key and the local Path.
+ */
+final class LegacyMedia implements Comparable<LegacyMedia> {
+    private final String name;
+    private final Timestamp createdAt;
+    private final Timestamp lastModify;
+    private final Map<String, String> paths;
+    private final long size;
+    private final String type;
+    private final Map<String, String> metadata;
+    private final String md5Hash;
+    private String quickHash;
+    private Long perceptualHash;
+    private final Path localPath;
+    private final String nameToSort;
+
+    LegacyMedia(String name,
+                Timestamp createdAt,
+                Timestamp lastModify,
+                Map<String, String> paths,
+                String md5Hash,
+                long size,
+                String type,
+                Map<String, String> metadata,
+                Path localPath) {
+        this.name = name;
+        this.createdAt = createdAt;
+        this.lastModify = lastModify;
+        this.paths = paths;
+        this.md5Hash = md5Hash;
+        this.size = size;
+        this.type = type;
+        this.metadata = metadata;
+        this.localPath = localPath;
+        this.nameToSort = name.replace("_", "").replace("-", "");
+    }
+
+    void setQuickHash(String quickHash) {
+        this.quickHash = quickHash;
+    }
+
+    void setPerceptualHash(Long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+    }
+
+    @Override
+    public int compareTo(LegacyMedia o) {
+        return nameToSort.compareTo(o.nameToSort);
+    }
+}
@@ -0,0 +1,116 @@
+package ru.alejov.media.gallery;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retained heap per catalog record, LegacyMedia against the compact Media, reported as the bytesPerEntry counter.
+ * Records are built the way a walk builds them: fresh Timestamps, a singleton paths map, a TreeMap of metadata
+ * and the local Path. Names, paths, hashes and metadata values are shared with the setup, so the counter is
+ * the cost of the record layout itself, not of the strings every layout has to keep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class MediaFootprintBenchmark {
+    private static final String HOST = "phone";
+
+    @Param("200000")
+    public int count;
+
+    private List<Media> source;
+
+    @Setup
+    public void setUp() {
+        source = BenchmarkMedia.generate(count);
+    }
+
+    //JMH sums EVENTS counters over measurement iterations and forks, each iteration adds its share of the mean
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double bytesPerEntry;
+
+        private long usedBefore;
+        private int measurements;
+
+        @Setup(Level.Iteration)
+        public void measureBefore(BenchmarkParams params) {
+            measurements = params.getMeasurement().getCount() * Math.max(1, params.getForks());
+            usedBefore = usedHeap();
+        }
+
+        private void measureAfter(int count) {
+            bytesPerEntry = (double) (usedHeap() - usedBefore) / count / measurements;
+        }
+    }
+
+    @Benchmark
+    public List<LegacyMedia> legacy(Footprint footprint) {
+        List<LegacyMedia> mediaList = new ArrayList<>(count);
+        for (Media media : source) {
+            String path = media.getPaths().get(HOST);
+            LegacyMedia legacyMedia = new LegacyMedia(media.getName(), new Timestamp(media.getCreatedAt().getTime()),
+                                                      new Timestamp(media.getLastModify().getTime()), Collections.singletonMap(HOST, path),
+                                                      media.getMd5Hash(), media.getSize(), media.getType(), copy(media.getMetadata()), Paths.get(path));
+            legacyMedia.setQuickHash(media.getQuickHash());
+            legacyMedia.setPerceptualHash(media.getPerceptualHash());
+            mediaList.add(legacyMedia);
+        }
+        footprint.measureAfter(count);
+        return mediaList;
+    }
+
+    @Benchmark
+    public List<Media> compact(Footprint footprint) {
+        List<Media> mediaList = new ArrayList<>(count);
+        for (Media media : source) {
+            String path = media.getPaths().get(HOST);
+            Media compactMedia = new Media(media.getName(), new Timestamp(media.getCreatedAt().getTime()),
+                                           new Timestamp(media.getLastModify().getTime()), Collections.singletonMap(HOST, path),
+                                           media.getMd5Hash(), media.getSize(), media.getType(), copy(media.getMetadata()), Paths.get(path));
+            compactMedia.setQuickHash(media.getQuickHash());
+            compactMedia.setPerceptualHash(media.getPerceptualHash());
+            mediaList.add(compactMedia);
+        }
+        footprint.measureAfter(count);
+        return mediaList;
+    }
+
+    private static Map<String, String> copy(Map<String, String> metadata) {
+        return metadata.isEmpty() ? Collections.emptyMap() : new TreeMap<>(metadata);
+    }
+
+    //only live objects remain after a full collection
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,43 @@
+package ru.alejov.media.gallery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the item strings commons-imaging prints for one JPEG, including tags outside MetaTag.
+ * Tag.parse is still the fallback for values without a typed TIFF field.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetadataTagParseBenchmark {
+
+    private final String[] items = {
+            "Make: 'Canon, Inc.'",
+            "Model: 'Canon EOS 5D Mark IV'",
+            "Orientation: 1",
+            "Software: 'GIMP 2.10.34'",
+            "DateTimeOriginal: '2019:05:06 07:08:09'",
+            "ExifImageWidth: 6720",
+            "ExifImageLength: 4480",
+            "GPSLatitudeRef: 'N'",
+            "GPSLatitude: 55, 45, 20.88",
+            "ISO: 100",
+            "LensModel: 'EF 24-105mm f/4L IS USM'",
+            "XResolution: 72"
+    };
+
+    @Benchmark
+    public void parseItems(Blackhole blackhole) {
+        for (String item : items) {
+            blackhole.consume(MetadataUtils.Tag.parse(item));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ru.alejov.media.gallery.init;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import ru.alejov.media.gallery.DateUtils;
+import ru.alejov.media.gallery.Media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Walks a generated tree of {@code fileCount} files. Besides wall time, the statsPerFile counter reports metadata
+ * lookups per file, counted by {@link StatCountingFileSystem} around the default file system: the legacy walk
+ * does four (Files.walk, Files.isDirectory, Files.readAttributes, File.length), {@link FillContentHelper#walk} one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class DirectoryWalkBenchmark {
+
+    private static final int FILES_PER_DIRECTORY = 1000;
+
+    @Param("100000")
+    public int fileCount;
+
+    private Path root;
+    private StatCountingFileSystem fileSystem;
+    private Path countingRoot;
+    private Properties supportedExtensions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("walk-benchmark");
+        for (int i = 0; i < fileCount; i++) {
+            Path directory = root.resolve("dir" + i / FILES_PER_DIRECTORY);
+            if (i % FILES_PER_DIRECTORY == 0) {
+                Files.createDirectories(directory);
+            }
+            Files.createFile(directory.resolve("IMG_20211002_" + (100000 + i % 100000) + "_" + i + ".jpg"));
+        }
+        fileSystem = new StatCountingFileSystem(FileSystems.getDefault());
+        countingRoot = fileSystem.wrap(root);
+        supportedExtensions = new Properties();
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("supported_extensions.properties")) {
+            supportedExtensions.load(inputStream);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            Iterator<Path> iterator = stream.sorted(Comparator.reverseOrder()).iterator();
+            while (iterator.hasNext()) {
+                Files.delete(iterator.next());
+            }
+        }
+    }
+
+    //JMH sums EVENTS counters over measurement iterations and forks, each iteration adds its share of the mean
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Stats {
+        public double statsPerFile;
+
+        private int measurements;
+
+        @Setup(Level.Iteration)
+        public void setUp(BenchmarkParams params) {
+            measurements = params.getMeasurement().getCount() * Math.max(1, params.getForks());
+        }
+
+        private void record(StatCountingFileSystem fileSystem, int fileCount) {
+            statsPerFile = (double) fileSystem.getStats() / fileCount / measurements;
+        }
+    }
+
+    @Benchmark
+    public long walkFileTree(Stats stats) throws IOException, InterruptedException {
+        fileSystem.resetStats();
+        long[] count = new long[1];
+        FillContentHelper.walk(countingRoot, supportedExtensions, new HashSet<>(), "benchmark", new MediaPipeline.Output() {
+            @Override
+            public void put(Media media) {
+                count[0] += media.getSize() + 1;
+            }
+
+            @Override
+            public void skip(Media media) {
+                put(media);
+            }
+        });
+        stats.record(fileSystem, fileCount);
+        return count[0];
+    }
+
+    @Benchmark
+    public long legacyFilesWalk(Stats stats) throws IOException {
+        fileSystem.resetStats();
+        long count = 0;
+        Set<String> unsupportedExtensions = new HashSet<>();
+        try (Stream<Path> stream = Files.walk(countingRoot)) {
+            Iterator<Path> iterator = stream.filter((Path path) -> !Files.isDirectory(path)).iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                String fileName = path.getFileName().toString();
+                String extension = FillContentHelper.getExtension(fileName);
+                String type = supportedExtensions.getProperty(extension);
+                if (type == null) {
+                    unsupportedExtensions.add(extension);
+                    continue;
+                }
+                Timestamp createDate = DateUtils.getCreateDate(Collections.emptyMap(), fileName);
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (createDate == null) {
+                    createDate = Timestamp.from(attributes.creationTime().toInstant());
+                }
+                Timestamp lastModify = Timestamp.from(attributes.lastModifiedTime().toInstant());
+                Path absolutePath = path.toAbsolutePath();
+                Media media = new Media(fileName, createDate, lastModify, Collections.singletonMap("benchmark", absolutePath.toString()),
+                                        null, path.toFile().length(), type, Collections.emptyMap(), absolutePath);
+                count += media.getSize() + 1;
+            }
+        }
+        stats.record(fileSystem, fileCount);
+        return count;
+    }
+}
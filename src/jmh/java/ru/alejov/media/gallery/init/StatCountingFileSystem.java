@@ -0,0 +1,447 @@
+package ru.alejov.media.gallery.init;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delegates to another file system and counts the metadata lookups made through it: every readAttributes and
+ * checkAccess of the provider, and length/isDirectory/isFile/exists/lastModified of the File returned by toFile(),
+ * which java.io serves without NIO. Paths handed out by this file system keep their calls routed through it.
+ */
+final class StatCountingFileSystem extends FileSystem {
+    private final FileSystem delegate;
+    private final Provider provider;
+    private final AtomicLong stats = new AtomicLong();
+
+    StatCountingFileSystem(FileSystem delegate) {
+        this.delegate = delegate;
+        this.provider = new Provider(delegate.provider());
+    }
+
+    long getStats() {
+        return stats.get();
+    }
+
+    void resetStats() {
+        stats.set(0);
+    }
+
+    Path wrap(Path path) {
+        return path instanceof CountingPath ? path : new CountingPath(path);
+    }
+
+    private static Path unwrap(Path path) {
+        return path instanceof CountingPath ? ((CountingPath) path).delegate : path;
+    }
+
+    @Override
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return delegate.isReadOnly();
+    }
+
+    @Override
+    public String getSeparator() {
+        return delegate.getSeparator();
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        List<Path> roots = new ArrayList<>();
+        for (Path root : delegate.getRootDirectories()) {
+            roots.add(wrap(root));
+        }
+        return roots;
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return delegate.getFileStores();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return delegate.supportedFileAttributeViews();
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        return wrap(delegate.getPath(first, more));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        PathMatcher matcher = delegate.getPathMatcher(syntaxAndPattern);
+        return (Path path) -> matcher.matches(unwrap(path));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        return delegate.getUserPrincipalLookupService();
+    }
+
+    @Override
+    public WatchService newWatchService() throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    private final class Provider extends FileSystemProvider {
+        private final FileSystemProvider delegate;
+
+        private Provider(FileSystemProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getScheme() {
+            return delegate.getScheme();
+        }
+
+        @Override
+        public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileSystem getFileSystem(URI uri) {
+            return StatCountingFileSystem.this;
+        }
+
+        @Override
+        public Path getPath(URI uri) {
+            return wrap(delegate.getPath(uri));
+        }
+
+        @Override
+        public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+            return delegate.newByteChannel(unwrap(path), options, attrs);
+        }
+
+        @Override
+        public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+            DirectoryStream<Path> stream = delegate.newDirectoryStream(unwrap(dir), (Path entry) -> filter.accept(wrap(entry)));
+            return new DirectoryStream<Path>() {
+                @Override
+                public Iterator<Path> iterator() {
+                    Iterator<Path> iterator = stream.iterator();
+                    return new Iterator<Path>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Path next() {
+                            return wrap(iterator.next());
+                        }
+                    };
+                }
+
+                @Override
+                public void close() throws IOException {
+                    stream.close();
+                }
+            };
+        }
+
+        @Override
+        public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+            delegate.createDirectory(unwrap(dir), attrs);
+        }
+
+        @Override
+        public void delete(Path path) throws IOException {
+            delegate.delete(unwrap(path));
+        }
+
+        @Override
+        public void copy(Path source, Path target, CopyOption... options) throws IOException {
+            delegate.copy(unwrap(source), unwrap(target), options);
+        }
+
+        @Override
+        public void move(Path source, Path target, CopyOption... options) throws IOException {
+            delegate.move(unwrap(source), unwrap(target), options);
+        }
+
+        @Override
+        public boolean isSameFile(Path path, Path path2) throws IOException {
+            return delegate.isSameFile(unwrap(path), unwrap(path2));
+        }
+
+        @Override
+        public boolean isHidden(Path path) throws IOException {
+            return delegate.isHidden(unwrap(path));
+        }
+
+        @Override
+        public FileStore getFileStore(Path path) throws IOException {
+            return delegate.getFileStore(unwrap(path));
+        }
+
+        @Override
+        public void checkAccess(Path path, AccessMode... modes) throws IOException {
+            stats.incrementAndGet();
+            delegate.checkAccess(unwrap(path), modes);
+        }
+
+        @Override
+        public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+            return delegate.getFileAttributeView(unwrap(path), type, options);
+        }
+
+        @Override
+        public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+            stats.incrementAndGet();
+            return delegate.readAttributes(unwrap(path), type, options);
+        }
+
+        @Override
+        public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+            stats.incrementAndGet();
+            return delegate.readAttributes(unwrap(path), attributes, options);
+        }
+
+        @Override
+        public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+            delegate.setAttribute(unwrap(path), attribute, value, options);
+        }
+    }
+
+    private final class CountingFile extends File {
+
+        private CountingFile(File file) {
+            super(file.getPath());
+        }
+
+        @Override
+        public long length() {
+            stats.incrementAndGet();
+            return super.length();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            stats.incrementAndGet();
+            return super.isDirectory();
+        }
+
+        @Override
+        public boolean isFile() {
+            stats.incrementAndGet();
+            return super.isFile();
+        }
+
+        @Override
+        public boolean exists() {
+            stats.incrementAndGet();
+            return super.exists();
+        }
+
+        @Override
+        public long lastModified() {
+            stats.incrementAndGet();
+            return super.lastModified();
+        }
+    }
+
+    private final class CountingPath implements Path {
+        private final Path delegate;
+
+        private CountingPath(Path delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public FileSystem getFileSystem() {
+            return StatCountingFileSystem.this;
+        }
+
+        @Override
+        public boolean isAbsolute() {
+            return delegate.isAbsolute();
+        }
+
+        @Override
+        public Path getRoot() {
+            return wrapNullable(delegate.getRoot());
+        }
+
+        @Override
+        public Path getFileName() {
+            return wrapNullable(delegate.getFileName());
+        }
+
+        @Override
+        public Path getParent() {
+            return wrapNullable(delegate.getParent());
+        }
+
+        @Override
+        public int getNameCount() {
+            return delegate.getNameCount();
+        }
+
+        @Override
+        public Path getName(int index) {
+            return wrap(delegate.getName(index));
+        }
+
+        @Override
+        public Path subpath(int beginIndex, int endIndex) {
+            return wrap(delegate.subpath(beginIndex, endIndex));
+        }
+
+        @Override
+        public boolean startsWith(Path other) {
+            return delegate.startsWith(unwrap(other));
+        }
+
+        @Override
+        public boolean startsWith(String other) {
+            return delegate.startsWith(other);
+        }
+
+        @Override
+        public boolean endsWith(Path other) {
+            return delegate.endsWith(unwrap(other));
+        }
+
+        @Override
+        public boolean endsWith(String other) {
+            return delegate.endsWith(other);
+        }
+
+        @Override
+        public Path normalize() {
+            return wrap(delegate.normalize());
+        }
+
+        @Override
+        public Path resolve(Path other) {
+            return wrap(delegate.resolve(unwrap(other)));
+        }
+
+        @Override
+        public Path resolve(String other) {
+            return wrap(delegate.resolve(other));
+        }
+
+        @Override
+        public Path resolveSibling(Path other) {
+            return wrap(delegate.resolveSibling(unwrap(other)));
+        }
+
+        @Override
+        public Path resolveSibling(String other) {
+            return wrap(delegate.resolveSibling(other));
+        }
+
+        @Override
+        public Path relativize(Path other) {
+            return wrap(delegate.relativize(unwrap(other)));
+        }
+
+        @Override
+        public URI toUri() {
+            return delegate.toUri();
+        }
+
+        @Override
+        public Path toAbsolutePath() {
+            return wrap(delegate.toAbsolutePath());
+        }
+
+        @Override
+        public Path toRealPath(LinkOption... options) throws IOException {
+            return wrap(delegate.toRealPath(options));
+        }
+
+        @Override
+        public File toFile() {
+            return new CountingFile(delegate.toFile());
+        }
+
+        @Override
+        public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterator<Path> iterator() {
+            List<Path> names = new ArrayList<>();
+            for (Path name : delegate) {
+                names.add(wrap(name));
+            }
+            return names.iterator();
+        }
+
+        @Override
+        public int compareTo(Path other) {
+            return delegate.compareTo(unwrap(other));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CountingPath && delegate.equals(((CountingPath) obj).delegate);
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+
+        private Path wrapNullable(Path path) {
+            return path != null ? wrap(path) : null;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static ru.alejov.media.gallery.ChunkedMediaWriter.OBJECT_MAPPER;
+import static ru.alejov.media.gallery.ChunkedMediaWriter.VERSION;
+
+/**
+ * Чтение выгрузки ChunkedMediaWriter: части разбираются в пуле не больше чем из availableProcessors потоков
+ * и передаются пачками, отсортированные части сливаются через PriorityQueue в общий порядок Media::compareTo.
+ * Задача части разбирает одну пачку и ставится в пул снова, пока в ее очереди есть место, поэтому
+ * заполненная очередь не занимает поток пула и частей может быть больше, чем потоков.
+ * Файлы из корзины (.trashed*) пропускаются.
+ */
+public class ChunkedMediaReader implements Iterator<Media>, Closeable {
+    public static final String MANIFEST_SUFFIX = ".manifest.json";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUE_BATCHES = 4;
+    //признак конца части, сравнивается по ссылке
+    private static final List<Media> END = Collections.unmodifiableList(new ArrayList<>());
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final PriorityQueue<Chunk> heads;
+    private final ExecutorService executor;
+    private final long count;
+
+    private ChunkedMediaReader(Path manifestFile, JsonNode manifest) {
+        count = manifest.path("count").asLong();
+        int threads = Math.max(1, Math.min(manifest.path("chunks").size(), Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "chunk-reader-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        heads = new PriorityQueue<>(Math.max(1, manifest.path("chunks").size()), (Chunk a, Chunk b) -> {
+            int result = a.head.compareTo(b.head);
+            return result != 0 ? result : Integer.compare(a.index, b.index);
+        });
+        for (JsonNode chunkNode : manifest.path("chunks")) {
+            Chunk chunk = new Chunk(chunks.size(), manifestFile.resolveSibling(chunkNode.path("file").asText()), executor);
+            chunks.add(chunk);
+            chunk.schedule();
+        }
+    }
+
+    public static ChunkedMediaReader open(Path manifestFile) throws IOException {
+        JsonNode manifest = OBJECT_MAPPER.readTree(manifestFile.toFile());
+        if (manifest.path("version").asInt() != VERSION) {
+            throw new IOException("Unknown manifest format: " + manifestFile);
+        }
+        ChunkedMediaReader chunkedMediaReader = new ChunkedMediaReader(manifestFile, manifest);
+        try {
+            for (Chunk chunk : chunkedMediaReader.chunks) {
+                if (chunk.advance()) {
+                    chunkedMediaReader.heads.add(chunk);
+                }
+            }
+            return chunkedMediaReader;
+        } catch (IOException | RuntimeException | Error e) {
+            chunkedMediaReader.close();
+            throw e;
+        }
+    }
+
+    public static boolean isManifest(Path file) {
+        return file.getFileName().toString().endsWith(MANIFEST_SUFFIX);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public Media next() {
+        Chunk chunk = heads.poll();
+        if (chunk == null) {
+            throw new NoSuchElementException();
+        }
+        Media media = chunk.head;
+        try {
+            if (chunk.advance()) {
+                heads.add(chunk);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return media;
+    }
+
+    @Override
+    public void close() {
+        heads.clear();
+        executor.shutdownNow();
+        for (Chunk chunk : chunks) {
+            chunk.close();
+        }
+    }
+
+    private static class Chunk implements Runnable {
+        private final int index;
+        private final Path file;
+        private final ExecutorService executor;
+        //место под пачку и END, которые задача может добавить за один запуск
+        private final BlockingQueue<List<Media>> batches = new ArrayBlockingQueue<>(QUEUE_BATCHES + 1);
+        //задача стоит в пуле или выполняется; одновременно выполняется не больше одной задачи части
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        @Nullable
+        private volatile Throwable error;
+        //поля ниже под блокировкой части
+        @Nullable
+        private MediaReader mediaReader;
+        private boolean finished;
+        //поля ниже только в потоке слияния
+        private List<Media> batch = Collections.emptyList();
+        private int position;
+        private Media head;
+
+        private Chunk(int index, Path file, ExecutorService executor) {
+            this.index = index;
+            this.file = file;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (!finished) {
+                    readBatch();
+                }
+            }
+            scheduled.set(false);
+            //очередь могла освободиться после проверки в readBatch(), поэтому проверяется после сброса флага
+            schedule();
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (finished || batches.size() >= QUEUE_BATCHES) {
+                    return;
+                }
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    //чтение закрыто
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        //END ставится всегда, в том числе после Error, иначе поток слияния ждал бы часть бесконечно
+        private void readBatch() {
+            try {
+                if (mediaReader == null) {
+                    mediaReader = new MediaReader(new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE));
+                }
+                List<Media> mediaList = new ArrayList<>(BATCH_SIZE);
+                while (mediaList.size() < BATCH_SIZE && mediaReader.hasNext()) {
+                    mediaList.add(mediaReader.next());
+                }
+                if (!mediaList.isEmpty()) {
+                    batches.add(mediaList);
+                }
+                if (!mediaReader.hasNext()) {
+                    finish();
+                }
+            } catch (UncheckedIOException e) {
+                error = e.getCause();
+                finish();
+            } catch (Throwable e) {
+                error = e;
+                finish();
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            closeReader();
+            batches.add(END);
+        }
+
+        private synchronized void close() {
+            finished = true;
+            closeReader();
+        }
+
+        private void closeReader() {
+            if (mediaReader != null) {
+                try {
+                    mediaReader.close();
+                } catch (IOException ignored) {
+                }
+                mediaReader = null;
+            }
+        }
+
+        //false - часть закончилась
+        private boolean advance() throws IOException {
+            if (position == batch.size()) {
+                try {
+                    batch = batches.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Import interrupted");
+                }
+                position = 0;
+                if (batch == END) {
+                    Throwable exception = error;
+                    if (exception instanceof IOException) {
+                        throw new IOException(file + ": " + exception, exception);
+                    } else if (exception instanceof Error) {
+                        throw (Error) exception;
+                    } else if (exception != null) {
+                        throw new RuntimeException(file + ": " + exception, exception);
+                    }
+                    return false;
+                }
+                schedule();
+            }
+            head = batch.get(position++);
+            return true;
+        }
+    }
+}
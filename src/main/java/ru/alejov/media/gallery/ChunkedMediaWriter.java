@@ -0,0 +1,202 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static ru.alejov.media.gallery.ChunkedMediaReader.MANIFEST_SUFFIX;
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+/**
+ * Выгрузка частями: каждые chunkSize записей сортируются и сжимаются в отдельный файл gzip с массивом JSON
+ * в пуле потоков, рядом пишется манифест (name.manifest.json) со списком частей. Читает ChunkedMediaReader.
+ * В памяти не больше threads + 1 частей.
+ * Имена частей уникальны для каждой выгрузки (name-метка-номер.json.gz), части прежней выгрузки не перезаписываются.
+ * В commit() манифест атомарно заменяет прежний, после чего удаляются части прежнего манифеста; до замены
+ * прежний манифест описывает только свои части. Неудачная выгрузка удаляет свои части и манифест не трогает.
+ */
+public class ChunkedMediaWriter implements MediaSink {
+    static final int VERSION = 1;
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectWriter MEDIA_WRITER = OBJECT_MAPPER.writer()
+                                                                  .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path manifestFile;
+    private final String baseName;
+    private final String exportId = Long.toString(System.currentTimeMillis(), 36);
+    private final int chunkSize;
+    private final int threads;
+    private final ExecutorService executor;
+    private final Deque<Future<ObjectNode>> pending = new ArrayDeque<>();
+    private final ArrayNode chunks = OBJECT_MAPPER.createArrayNode();
+    private final List<Path> chunkFiles = new ArrayList<>();
+    private List<Media> chunk;
+    private int chunkCount;
+    private long count;
+    private boolean committed;
+
+    public ChunkedMediaWriter(Path manifestFile, int chunkSize, int threads) {
+        String fileName = manifestFile.getFileName().toString();
+        this.manifestFile = manifestFile;
+        this.baseName = fileName.substring(0, fileName.length() - MANIFEST_SUFFIX.length());
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+        this.chunk = new ArrayList<>(chunkSize);
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "chunk-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void accept(Media media) throws IOException {
+        chunk.add(media);
+        ++count;
+        if (chunk.size() >= chunkSize) {
+            submitChunk();
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    //вызывается после успешной выгрузки всех записей
+    public void commit() throws IOException {
+        if (!chunk.isEmpty()) {
+            submitChunk();
+        }
+        while (!pending.isEmpty()) {
+            chunks.add(await(pending.poll()));
+        }
+        Set<Path> previousChunks = readChunkFiles(manifestFile);
+        ObjectNode manifest = OBJECT_MAPPER.createObjectNode();
+        manifest.put("version", VERSION);
+        manifest.put("count", count);
+        manifest.set("chunks", chunks);
+        Path tmpManifest = getTmpFile(manifestFile);
+        OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(tmpManifest.toFile(), manifest);
+        Files.move(tmpManifest, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        previousChunks.removeAll(chunkFiles);
+        for (Path file : previousChunks) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    //части, перечисленные в манифесте; нечитаемый прежний манифест просто заменяется
+    private static Set<Path> readChunkFiles(Path manifestFile) {
+        Set<Path> files = new HashSet<>();
+        if (!Files.exists(manifestFile)) {
+            return files;
+        }
+        try {
+            for (JsonNode chunkNode : OBJECT_MAPPER.readTree(manifestFile.toFile()).path("chunks")) {
+                files.add(manifestFile.resolveSibling(chunkNode.path("file").asText()));
+            }
+        } catch (IOException e) {
+            log.warn("Previous manifest {} is not readable, its chunks are kept: {}", manifestFile, e.toString());
+            files.clear();
+        }
+        return files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (committed) {
+            return;
+        }
+        //части, которые еще пишутся, удаляются после завершения их потоков
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Path file : chunkFiles) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static Path getTmpFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    private void submitChunk() throws IOException {
+        List<Media> mediaList = chunk;
+        chunk = new ArrayList<>(chunkSize);
+        Path file = manifestFile.resolveSibling(String.format("%s-%s-%05d.json.gz", baseName, exportId, ++chunkCount));
+        chunkFiles.add(file);
+        pending.add(executor.submit(() -> writeChunk(file, mediaList)));
+        while (pending.size() > threads) {
+            chunks.add(await(pending.poll()));
+        }
+    }
+
+    private static ObjectNode writeChunk(Path file, List<Media> mediaList) throws IOException {
+        mediaList.sort(Media::compareTo);
+        try (CountingOutputStream outputStream = new CountingOutputStream(new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE) {
+            {
+                def.setLevel(5);
+            }
+        }); JsonGenerator generator = MEDIA_WRITER.getFactory().createGenerator(outputStream)) {
+            generator.writeStartArray();
+            long written = 0;
+            for (Media media : mediaList) {
+                long start = System.nanoTime();
+                MEDIA_WRITER.writeValue(generator, media);
+                long position = outputStream.getCount() + generator.getOutputBuffered();
+                JsonMediaWriter.WRITE_TIMER.record(start, position - written);
+                written = position;
+            }
+            generator.writeEndArray();
+        }
+        ObjectNode chunk = OBJECT_MAPPER.createObjectNode();
+        chunk.put("file", file.getFileName().toString());
+        chunk.put("count", mediaList.size());
+        return chunk;
+    }
+
+    private static ObjectNode await(Future<ObjectNode> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
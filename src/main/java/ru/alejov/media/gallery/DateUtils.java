@@ -1,74 +1,163 @@
 package ru.alejov.media.gallery;
 
-import org.apache.commons.lang3.StringUtils;
-
-import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.sql.Timestamp;
-import java.time.DateTimeException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.time.YearMonth;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Дата создания из имени файла или EXIF. Имя просматривается за один проход без регулярных выражений и исключений:
+ * дата со временем - последнее вхождение 8 цифр, '_' и 6 цифр (IMG_20211002_143434, PXL_20211002_143434123),
+ * дата без времени - последние 8 цифр подряд (IMG-20211002-WA0001, Screenshot_20200101-101010).
+ * Значения проверяются как при разборе DateTimeFormatter в режиме SMART: несуществующий день месяца заменяется
+ * последним днем, 24:00:00 - полночь следующего дня, остальные выходы за диапазон - не дата.
+ */
 public class DateUtils {
-    static final Pattern DATE_FULL_PATTERN = Pattern.compile(".*([0-9]{8}_[0-9]{6}).*");
-    static final Pattern DATE_SHORT_PATTERN = Pattern.compile(".*([0-9]{8}).*");
-    static final DateTimeFormatter DATE_FULL_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
-    //20211002 143434
-    static final DateTimeFormatter DATE_FULL_FORMAT2 = DateTimeFormatter.ofPattern("yyyyMMdd HHmmss");
-    static final DateTimeFormatter DATE_SHORT_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final int FULL_LENGTH = 15;
+    private static final int SHORT_LENGTH = 8;
+    //граница "не позже завтрашнего дня" пересчитывается раз в час, а не для каждого файла
+    private static final long NOW_REFRESH_MILLIS = 3600_000L;
+
+    @Nullable
+    private static volatile NowBound nowBound;
 
     @Nullable
     public static Timestamp getCreateDate(Map<String, String> tags, String fileName) {
-        Matcher dateFullMatcher = DateUtils.DATE_FULL_PATTERN.matcher(fileName);
-        if (dateFullMatcher.find()) {
-            String dateFull = dateFullMatcher.group(1);
-            try {
-                LocalDateTime localDateTime = LocalDateTime.parse(dateFull, DateUtils.DATE_FULL_FORMAT);
-                if (localDateTime.isAfter(LocalDateTime.now().plusDays(1))) {
-                    throw new DateTimeException("Incorrect date: " + dateFull);
-                }
-                return Timestamp.valueOf(localDateTime);
-            } catch (DateTimeException ignored) {
+        int full = lastFullDate(fileName);
+        if (full >= 0) {
+            //дата со временем в имени важнее EXIF, даже если она неверная
+            LocalDateTime localDateTime = toDateTime(fileName, full, full + SHORT_LENGTH + 1);
+            if (localDateTime == null || localDateTime.isAfter(getNowBound().maxDateTime)) {
+                return null;
             }
-        } else {
-            String dateTimeOriginal = tags.get(MetaTag.DateTimeOriginal.name());
-            Timestamp createDate = null;
-            if (dateTimeOriginal != null) {
-                createDate = parseDateTimeMetadata(dateTimeOriginal);
+            return Timestamp.valueOf(localDateTime);
+        }
+        String dateTimeOriginal = tags.get(MetaTag.DateTimeOriginal.name());
+        if (dateTimeOriginal != null) {
+            Timestamp createDate = parseDateTimeMetadata(dateTimeOriginal);
+            if (createDate != null) {
+                return createDate;
             }
-            if (createDate == null) {
-                Matcher dateShortMatcher = DateUtils.DATE_SHORT_PATTERN.matcher(fileName);
-                if (dateShortMatcher.find()) {
-                    String dateShort = dateShortMatcher.group(1);
-                    try {
-                        LocalDate localDate = LocalDate.parse(dateShort, DateUtils.DATE_SHORT_FORMAT);
-                        if (localDate.isAfter(LocalDate.now().plusDays(1))) {
-                            throw new DateTimeException("Incorrect date: " + dateShort);
-                        }
-                        createDate = Timestamp.valueOf(localDate.atStartOfDay());
-                    } catch (DateTimeException ignored) {
-                    }
-                }
+        }
+        int date = lastDigits(fileName, SHORT_LENGTH);
+        if (date >= 0) {
+            LocalDate localDate = toDate(fileName, date);
+            if (localDate != null && !localDate.isAfter(getNowBound().maxDate)) {
+                return Timestamp.valueOf(localDate.atStartOfDay());
             }
-            return createDate;
         }
         return null;
     }
 
+    //значение EXIF без ':' - "yyyyMMdd HHmmss", возможно в кавычках
+    @Nullable
+    private static Timestamp parseDateTimeMetadata(String dateTimeOriginal) {
+        String value = dateTimeOriginal.indexOf('\'') >= 0 ? dateTimeOriginal.replace("'", "") : dateTimeOriginal;
+        if (value.length() != FULL_LENGTH || value.charAt(SHORT_LENGTH) != ' '
+            || !isDigits(value, 0, SHORT_LENGTH) || !isDigits(value, SHORT_LENGTH + 1, 6)) {
+            return null;
+        }
+        LocalDateTime localDateTime = toDateTime(value, 0, SHORT_LENGTH + 1);
+        return localDateTime != null ? Timestamp.valueOf(localDateTime) : null;
+    }
 
-    private static Timestamp parseDateTimeMetadata(@Nonnull String dateTimeOriginal) {
-        try {
-            String removed = StringUtils.remove(dateTimeOriginal, '\'');
-            LocalDateTime localDateTime = LocalDateTime.parse(removed, DateUtils.DATE_FULL_FORMAT2);
-            return Timestamp.valueOf(localDateTime);
-        } catch (DateTimeParseException e) {
-            e.printStackTrace();
+    //начало последнего вхождения "8 цифр _ 6 цифр" или -1
+    private static int lastFullDate(String s) {
+        for (int underscore = s.lastIndexOf('_'); underscore >= SHORT_LENGTH; underscore = s.lastIndexOf('_', underscore - 1)) {
+            if (underscore + 7 <= s.length() && isDigits(s, underscore - SHORT_LENGTH, SHORT_LENGTH) && isDigits(s, underscore + 1, 6)) {
+                return underscore - SHORT_LENGTH;
+            }
+        }
+        return -1;
+    }
+
+    //начало последних count цифр подряд или -1; в длинной серии цифр это ее последние count цифр
+    private static int lastDigits(String s, int count) {
+        int run = 0;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (isDigit(s.charAt(i))) {
+                if (++run == count) {
+                    return i;
+                }
+            } else {
+                run = 0;
+            }
+        }
+        return -1;
+    }
+
+    @Nullable
+    private static LocalDateTime toDateTime(String s, int date, int time) {
+        LocalDate localDate = toDate(s, date);
+        int hour = number(s, time, 2);
+        int minute = number(s, time + 2, 2);
+        int second = number(s, time + 4, 2);
+        if (localDate == null || hour > 24 || minute > 59 || second > 59) {
+            return null;
+        }
+        if (hour == 24) {
+            return minute == 0 && second == 0 ? localDate.plusDays(1).atStartOfDay() : null;
+        }
+        return localDate.atTime(hour, minute, second);
+    }
+
+    @Nullable
+    private static LocalDate toDate(String s, int date) {
+        int year = number(s, date, 4);
+        int month = number(s, date + 4, 2);
+        int day = number(s, date + 6, 2);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > 31) {
+            return null;
+        }
+        return LocalDate.of(year, month, Math.min(day, YearMonth.of(year, month).lengthOfMonth()));
+    }
+
+    private static int number(String s, int from, int length) {
+        int value = 0;
+        for (int i = from; i < from + length; i++) {
+            value = value * 10 + s.charAt(i) - '0';
+        }
+        return value;
+    }
+
+    private static boolean isDigits(String s, int from, int length) {
+        if (from < 0 || from + length > s.length()) {
+            return false;
+        }
+        for (int i = from; i < from + length; i++) {
+            if (!isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //только ASCII: [0-9] в регулярном выражении не совпадал с цифрами других алфавитов
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static NowBound getNowBound() {
+        NowBound bound = nowBound;
+        long now = System.currentTimeMillis();
+        if (bound == null || now - bound.createdAt > NOW_REFRESH_MILLIS) {
+            bound = new NowBound(now);
+            nowBound = bound;
+        }
+        return bound;
+    }
+
+    private static class NowBound {
+        private final long createdAt;
+        private final LocalDateTime maxDateTime;
+        private final LocalDate maxDate;
+
+        private NowBound(long createdAt) {
+            this.createdAt = createdAt;
+            this.maxDateTime = LocalDateTime.now().plusDays(1);
+            this.maxDate = LocalDate.now().plusDays(1);
         }
-        return null;
     }
 }
@@ -0,0 +1,287 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Поиск копий одного содержимого под разными именами. Каталог читается дважды: первый проход считает записи
+ * каждого размера в LongIntHashMap, второй оставляет в памяти только записи с неуникальным размером.
+ * Внутри размера копии группируются по полному хешу. Если задан алгоритм, недостающий полный хеш считается
+ * для файлов этого хоста, которые быстрый отпечаток не отличает от других записей того же размера.
+ * Одинаковые размер и отпечаток без полного хеша хотя бы у одной записи - вероятные копии, они в отчете отдельно.
+ * Хеши разных алгоритмов не совпадают, такие копии не находятся.
+ */
+public class DuplicateFinder {
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final Logger log;
+    private final String hostName;
+    @Nullable
+    private final HashAlgorithm hashAlgorithm;
+    private final List<Group> duplicates = new ArrayList<>();
+    private final List<Group> probable = new ArrayList<>();
+    private long total;
+    private long candidates;
+    private long hashed;
+
+    //hashAlgorithm - null, если файлы не читаются
+    public DuplicateFinder(Logger log, String hostName, @Nullable HashAlgorithm hashAlgorithm) {
+        this.log = log;
+        this.hostName = hostName;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public void find(MediaSource mediaSource) throws IOException, SQLException {
+        LongIntHashMap sizeCounts = new LongIntHashMap(1024);
+        mediaSource.drainTo((Media media) -> {
+            ++total;
+            if (media.getSize() > 0) {
+                sizeCounts.increment(media.getSize());
+            }
+        });
+        log.info("Read {} files, {} distinct sizes", total, sizeCounts.size());
+        List<Entry> entries = new ArrayList<>();
+        mediaSource.drainTo((Media media) -> {
+            if (media.getSize() > 0 && sizeCounts.get(media.getSize(), 0) > 1) {
+                entries.add(new Entry(media));
+            }
+        });
+        candidates = entries.size();
+        log.info("{} files share a size with another file", candidates);
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.size));
+        int from = 0;
+        while (from < entries.size()) {
+            int to = from + 1;
+            while (to < entries.size() && entries.get(to).size == entries.get(from).size) {
+                ++to;
+            }
+            groupSameSize(entries.subList(from, to));
+            from = to;
+        }
+        Comparator<Group> byReclaimable = Comparator.comparingLong((Group group) -> group.reclaimable)
+                                                    .thenComparingLong((Group group) -> group.size)
+                                                    .reversed();
+        duplicates.sort(byReclaimable);
+        probable.sort(byReclaimable);
+        log.info("Found {} duplicate groups, {} bytes reclaimable, {} probable groups, {} files hashed",
+                 duplicates.size(), getReclaimable(duplicates), probable.size(), hashed);
+    }
+
+    public void writeReport(Path file) throws IOException {
+        Map<String, long[]> hosts = new TreeMap<>();
+        for (Group group : duplicates) {
+            for (Map.Entry<String, Long> entry : group.reclaimableByHost.entrySet()) {
+                long[] host = hosts.computeIfAbsent(entry.getKey(), (String key) -> new long[2]);
+                ++host[0];
+                host[1] += entry.getValue();
+            }
+        }
+        try (JsonGenerator generator = new JsonFactory().createGenerator(Files.newBufferedWriter(file))) {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeNumberField("files", total);
+            generator.writeNumberField("candidates", candidates);
+            generator.writeNumberField("hashed", hashed);
+            generator.writeNumberField("duplicateGroups", duplicates.size());
+            generator.writeNumberField("reclaimableBytes", getReclaimable(duplicates));
+            generator.writeObjectFieldStart("hosts");
+            for (Map.Entry<String, long[]> entry : hosts.entrySet()) {
+                generator.writeObjectFieldStart(entry.getKey());
+                generator.writeNumberField("groups", entry.getValue()[0]);
+                generator.writeNumberField("reclaimableBytes", entry.getValue()[1]);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            writeGroups(generator, "duplicates", "hash", duplicates);
+            writeGroups(generator, "probable", "quickHash", probable);
+            generator.writeEndObject();
+        }
+    }
+
+    private void groupSameSize(List<Entry> entries) {
+        LongIntHashMap quickCounts = new LongIntHashMap(entries.size());
+        for (Entry entry : entries) {
+            if (entry.quickHash != null) {
+                quickCounts.increment(key(entry.quickHash));
+            }
+        }
+        if (hashAlgorithm != null) {
+            for (Entry entry : entries) {
+                if (entry.hash == null && (entry.quickHash == null || quickCounts.get(key(entry.quickHash), 0) > 1)) {
+                    String localPath = entry.getPath(hostName);
+                    if (localPath != null && Files.isRegularFile(Paths.get(localPath))) {
+                        entry.hash = HashUtils.getHash(Paths.get(localPath), hashAlgorithm);
+                        ++hashed;
+                    }
+                }
+            }
+        }
+        duplicates.addAll(group(entries, (Entry entry) -> entry.hash));
+        for (Group group : group(entries, (Entry entry) -> entry.quickHash)) {
+            for (Entry entry : group.entries) {
+                if (entry.hash == null) {
+                    probable.add(group);
+                    break;
+                }
+            }
+        }
+    }
+
+    //группы из двух и больше записей с одинаковым ключом; совпадение 64-битного ключа у разных строк уводит к следующему
+    private static List<Group> group(List<Entry> entries, Function<Entry, String> keyFunction) {
+        LongIntHashMap indexes = new LongIntHashMap(entries.size());
+        List<Group> groups = new ArrayList<>();
+        for (Entry entry : entries) {
+            String value = keyFunction.apply(entry);
+            if (value == null) {
+                continue;
+            }
+            long key = key(value);
+            int index;
+            while ((index = indexes.get(key, -1)) >= 0 && !groups.get(index).key.equals(value)) {
+                ++key;
+            }
+            if (index < 0) {
+                index = groups.size();
+                indexes.put(key, index);
+                groups.add(new Group(entry.size, value));
+            }
+            groups.get(index).entries.add(entry);
+        }
+        List<Group> result = new ArrayList<>();
+        for (Group group : groups) {
+            if (group.entries.size() > 1) {
+                group.countReclaimable();
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    private static void writeGroups(JsonGenerator generator, String name, String keyName, List<Group> groups) throws IOException {
+        generator.writeArrayFieldStart(name);
+        for (Group group : groups) {
+            generator.writeStartObject();
+            generator.writeNumberField("size", group.size);
+            generator.writeStringField(keyName, group.key);
+            generator.writeNumberField("reclaimableBytes", group.reclaimable);
+            generator.writeObjectFieldStart("reclaimableByHost");
+            for (Map.Entry<String, Long> entry : group.reclaimableByHost.entrySet()) {
+                generator.writeNumberField(entry.getKey(), entry.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeArrayFieldStart("files");
+            for (Entry entry : group.entries) {
+                generator.writeStartObject();
+                generator.writeStringField("name", entry.name);
+                generator.writeObjectFieldStart("paths");
+                for (int i = 0; i < entry.paths.length; i += 2) {
+                    generator.writeStringField(entry.paths[i], entry.paths[i + 1]);
+                }
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static long getReclaimable(List<Group> groups) {
+        long reclaimable = 0;
+        for (Group group : groups) {
+            reclaimable += group.reclaimable;
+        }
+        return reclaimable;
+    }
+
+    //FNV-1a: хеши и отпечатки бывают и hex, и произвольной строкой
+    private static long key(String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static class Entry {
+        private final String name;
+        private final long size;
+        //хост, путь, хост, путь... - без карты на каждую из миллионов записей
+        private final String[] paths;
+        @Nullable
+        private final String quickHash;
+        @Nullable
+        private String hash;
+
+        private Entry(Media media) {
+            this.name = media.getName();
+            this.size = media.getSize();
+            this.quickHash = media.getQuickHash();
+            this.hash = media.getMd5Hash();
+            Map<String, String> mediaPaths = media.getPaths() != null ? media.getPaths() : Collections.emptyMap();
+            this.paths = new String[mediaPaths.size() * 2];
+            int i = 0;
+            for (Map.Entry<String, String> entry : mediaPaths.entrySet()) {
+                paths[i++] = entry.getKey();
+                paths[i++] = entry.getValue();
+            }
+        }
+
+        @Nullable
+        private String getPath(String host) {
+            for (int i = 0; i < paths.length; i += 2) {
+                if (paths[i].equals(host)) {
+                    return paths[i + 1];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Group {
+        private final long size;
+        private final String key;
+        private final List<Entry> entries = new ArrayList<>(2);
+        private final Map<String, Long> reclaimableByHost = new TreeMap<>();
+        private long reclaimable;
+
+        private Group(long size, String key) {
+            this.size = size;
+            this.key = key;
+        }
+
+        //на каждом хосте освобождается место всех копий, кроме одной; копии на разных хостах ничего не освобождают
+        private void countReclaimable() {
+            Map<String, Integer> copies = new TreeMap<>();
+            for (Entry entry : entries) {
+                for (int i = 0; i < entry.paths.length; i += 2) {
+                    copies.merge(entry.paths[i], 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<String, Integer> entry : copies.entrySet()) {
+                if (entry.getValue() > 1) {
+                    long bytes = size * (entry.getValue() - 1);
+                    reclaimableByHost.put(entry.getKey(), bytes);
+                    reclaimable += bytes;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.alejov.media.gallery;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Индекс 64-битных хешей для поиска в радиусе по расстоянию Хэмминга (multi-index hashing).
+ * Хеш делится на 4 части по 16 бит; если расстояние до запроса не больше r, хотя бы одна часть отличается
+ * не больше чем на r / 4 бит. Поэтому проверяются только записи из корзин частей запроса и их соседей в этом радиусе:
+ * при r от 4 до 7 - 17 корзин на часть, около n / 1000 кандидатов вместо n.
+ * BK-дерево на таких хешах почти не отсекает ветви: расстояния между несвязанными хешами сосредоточены около 32.
+ * При r от 16 перебираются все хеши.
+ * Корзины каждой части - отсортированный подсчетом массив номеров с массивом начал корзин, без объекта на запись.
+ */
+final class HammingIndex {
+    private static final int PARTS = 4;
+    private static final int PART_BITS = Long.SIZE / PARTS;
+    private static final int PART_MASK = (1 << PART_BITS) - 1;
+    //с 4 битами на часть корзин больше 2500 на часть, полный перебор уже быстрее
+    private static final int MAX_PART_DISTANCE = 3;
+
+    private final long[] hashes;
+    private final int size;
+    private final int[][] starts = new int[PARTS][];
+    private final int[][] indexes = new int[PARTS][];
+
+    //hashes не копируется, первые size значений не должны меняться
+    HammingIndex(long[] hashes, int size) {
+        this.hashes = hashes;
+        this.size = size;
+        for (int part = 0; part < PARTS; part++) {
+            int[] partStarts = new int[PART_MASK + 2];
+            for (int i = 0; i < size; i++) {
+                ++partStarts[part(hashes[i], part) + 1];
+            }
+            for (int bucket = 0; bucket <= PART_MASK; bucket++) {
+                partStarts[bucket + 1] += partStarts[bucket];
+            }
+            int[] partIndexes = new int[size];
+            int[] next = partStarts.clone();
+            for (int i = 0; i < size; i++) {
+                partIndexes[next[part(hashes[i], part)]++] = i;
+            }
+            starts[part] = partStarts;
+            indexes[part] = partIndexes;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    //номера хешей на расстоянии не больше maxDistance, каждый ровно один раз
+    void search(long hash, int maxDistance, IntConsumer consumer) {
+        int partDistance = maxDistance / PARTS;
+        if (partDistance > MAX_PART_DISTANCE) {
+            for (int i = 0; i < size; i++) {
+                if (PerceptualHashUtils.distance(hash, hashes[i]) <= maxDistance) {
+                    consumer.accept(i);
+                }
+            }
+            return;
+        }
+        for (int part = 0; part < PARTS; part++) {
+            searchPart(hash, maxDistance, partDistance, part, part(hash, part), 0, partDistance, consumer);
+        }
+    }
+
+    //перебор корзин части, отличающихся от bucket не больше чем на flips бит из [fromBit, PART_BITS)
+    private void searchPart(long hash, int maxDistance, int partDistance, int part, int bucket, int fromBit, int flips, IntConsumer consumer) {
+        int[] partIndexes = indexes[part];
+        for (int i = starts[part][bucket], end = starts[part][bucket + 1]; i < end; i++) {
+            int index = partIndexes[i];
+            long candidate = hashes[index];
+            if (PerceptualHashUtils.distance(hash, candidate) <= maxDistance && !foundInPreviousPart(hash, candidate, part, partDistance)) {
+                consumer.accept(index);
+            }
+        }
+        if (flips > 0) {
+            for (int bit = fromBit; bit < PART_BITS; bit++) {
+                searchPart(hash, maxDistance, partDistance, part, bucket ^ (1 << bit), bit + 1, flips - 1, consumer);
+            }
+        }
+    }
+
+    //кандидат уже выдан при просмотре одной из предыдущих частей
+    private static boolean foundInPreviousPart(long hash, long candidate, int part, int partDistance) {
+        for (int previous = 0; previous < part; previous++) {
+            if (Integer.bitCount(part(hash, previous) ^ part(candidate, previous)) <= partDistance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int part(long hash, int part) {
+        return (int) (hash >>> (part * PART_BITS)) & PART_MASK;
+    }
+}
@@ -1,29 +1,97 @@
 package ru.alejov.media.gallery;
 
-import org.postgresql.core.Utils;
-
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardOpenOption;
 
 public class HashUtils {
 
-    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
-        try {
-            return MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int QUICK_BLOCK_SIZE = BUFFER_SIZE;
+
+    private static final ThreadLocal<HashAlgorithm.Hasher[]> HASHERS = ThreadLocal.withInitial(() -> new HashAlgorithm.Hasher[HashAlgorithm.values().length]);
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final Metrics.Timer FULL_HASH_TIMER = Metrics.timer("hash.full");
+    private static final Metrics.Timer QUICK_HASH_TIMER = Metrics.timer("hash.quick");
+
+    public static String getHash(Path path, HashAlgorithm algorithm) {
+        long start = System.nanoTime();
+        HashAlgorithm.Hasher hasher = getHasher(algorithm);
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                bytes += buffer.remaining();
+                hasher.update(buffer);
+                buffer.clear();
+            }
+            String hash = algorithm.format(hasher.digest());
+            FULL_HASH_TIMER.record(start, bytes);
+            return hash;
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
-    });
+    }
 
-    public static String getMd5Hash(Path path) {
-        try {
-            byte[] digest = MD5.get().digest(Files.readAllBytes(path));
-            return Utils.toHexString(digest);
+    //быстрый отпечаток: размер и MD5 первого, среднего и последнего блока, файл до трех блоков читается целиком.
+    //Разные отпечатки - разные файлы, одинаковые надо подтверждать полным хешем.
+    //Алгоритм отпечатка не настраивается, чтобы отпечатки всегда можно было сравнить
+    public static String getQuickHash(Path path) {
+        long start = System.nanoTime();
+        HashAlgorithm.Hasher md5 = getHasher(HashAlgorithm.MD5);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            buffer.clear();
+            buffer.putLong(size).flip();
+            md5.update(buffer);
+            long bytes;
+            if (size <= 3L * QUICK_BLOCK_SIZE) {
+                bytes = update(md5, channel, buffer, 0, size);
+            } else {
+                bytes = update(md5, channel, buffer, 0, QUICK_BLOCK_SIZE)
+                        + update(md5, channel, buffer, (size - QUICK_BLOCK_SIZE) / 2, QUICK_BLOCK_SIZE)
+                        + update(md5, channel, buffer, size - QUICK_BLOCK_SIZE, QUICK_BLOCK_SIZE);
+            }
+            String hash = HashAlgorithm.MD5.format(md5.digest());
+            QUICK_HASH_TIMER.record(start, bytes);
+            return hash;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static HashAlgorithm.Hasher getHasher(HashAlgorithm algorithm) {
+        HashAlgorithm.Hasher[] hashers = HASHERS.get();
+        HashAlgorithm.Hasher hasher = hashers[algorithm.ordinal()];
+        if (hasher == null) {
+            hasher = algorithm.newHasher();
+            hashers[algorithm.ordinal()] = hasher;
+        } else {
+            hasher.reset();
+        }
+        return hasher;
+    }
+
+    //прочитанные байты
+    private static long update(HashAlgorithm.Hasher md5, FileChannel channel, ByteBuffer buffer, long position, long length) throws IOException {
+        long begin = position;
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            buffer.flip();
+            md5.update(buffer);
+        }
+        return position - begin;
+    }
 }
@@ -0,0 +1,168 @@
+package ru.alejov.media.gallery;
+
+import javax.annotation.Nullable;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class ImageSizeUtils {
+
+    private static final int HEADER_SIZE = 32;
+    private static final int MAX_JPEG_SEGMENTS = 256;
+    private static final int TIFF_IMAGE_WIDTH = 256;
+    private static final int TIFF_IMAGE_LENGTH = 257;
+    private static final int TIFF_SHORT = 3;
+    private static final int TIFF_LONG = 4;
+
+    @Nullable
+    public static Dimension getImageSize(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if (header.remaining() < 4) {
+                return null;
+            }
+            int b0 = header.get(0) & 0xFF;
+            int b1 = header.get(1) & 0xFF;
+            if (b0 == 0xFF && b1 == 0xD8) {
+                return getJpegSize(channel);
+            } else if (b0 == 0x89 && b1 == 'P' && header.get(2) == 'N' && header.get(3) == 'G') {
+                return getPngSize(header);
+            } else if (b0 == 'G' && b1 == 'I' && header.get(2) == 'F') {
+                return getGifSize(header);
+            } else if (b0 == 'B' && b1 == 'M') {
+                return getBmpSize(header);
+            } else if ((b0 == 'I' && b1 == 'I') || (b0 == 'M' && b1 == 'M')) {
+                return getTiffSize(channel, b0 == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Dimension getPngSize(ByteBuffer header) {
+        //сигнатура(8), длина чанка(4), IHDR(4), ширина(4), высота(4)
+        if (header.remaining() < 24 || header.get(12) != 'I' || header.get(13) != 'H' || header.get(14) != 'D' || header.get(15) != 'R') {
+            return null;
+        }
+        header.order(ByteOrder.BIG_ENDIAN);
+        return dimension(header.getInt(16), header.getInt(20));
+    }
+
+    @Nullable
+    private static Dimension getGifSize(ByteBuffer header) {
+        if (header.remaining() < 10) {
+            return null;
+        }
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        return dimension(header.getShort(6) & 0xFFFF, header.getShort(8) & 0xFFFF);
+    }
+
+    @Nullable
+    private static Dimension getBmpSize(ByteBuffer header) {
+        if (header.remaining() < 26) {
+            return null;
+        }
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        int dibHeaderSize = header.getInt(14);
+        if (dibHeaderSize == 12) {
+            return dimension(header.getShort(18) & 0xFFFF, header.getShort(20) & 0xFFFF);
+        }
+        return dimension(header.getInt(18), Math.abs(header.getInt(22)));
+    }
+
+    @Nullable
+    private static Dimension getJpegSize(FileChannel channel) throws IOException {
+        long position = 2;
+        for (int i = 0; i < MAX_JPEG_SEGMENTS; i++) {
+            ByteBuffer marker = read(channel, position, 4);
+            if (marker.remaining() < 4 || (marker.get(0) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int code = marker.get(1) & 0xFF;
+            if (code == 0xFF) {
+                //заполняющий байт
+                ++position;
+                continue;
+            }
+            if (code == 0x01 || (code >= 0xD0 && code <= 0xD7)) {
+                position += 2;
+                continue;
+            }
+            if (code == 0xD9 || code == 0xDA) {
+                //конец изображения или начало данных, а SOF так и не встретился
+                return null;
+            }
+            int length = marker.getShort(2) & 0xFFFF;
+            if (code >= 0xC0 && code <= 0xCF && code != 0xC4 && code != 0xC8 && code != 0xCC) {
+                ByteBuffer frame = read(channel, position + 4, 5);
+                if (frame.remaining() < 5) {
+                    return null;
+                }
+                return dimension(frame.getShort(3) & 0xFFFF, frame.getShort(1) & 0xFFFF);
+            }
+            position += 2 + length;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Dimension getTiffSize(FileChannel channel, ByteOrder byteOrder) throws IOException {
+        ByteBuffer header = read(channel, 0, 8).order(byteOrder);
+        if (header.remaining() < 8 || header.getShort(2) != 42) {
+            return null;
+        }
+        long ifdOffset = header.getInt(4) & 0xFFFFFFFFL;
+        ByteBuffer countBuffer = read(channel, ifdOffset, 2).order(byteOrder);
+        if (countBuffer.remaining() < 2) {
+            return null;
+        }
+        int count = countBuffer.getShort(0) & 0xFFFF;
+        ByteBuffer entries = read(channel, ifdOffset + 2, count * 12).order(byteOrder);
+        int width = -1;
+        int height = -1;
+        for (int offset = 0; offset + 12 <= entries.remaining(); offset += 12) {
+            int tag = entries.getShort(offset) & 0xFFFF;
+            if (tag != TIFF_IMAGE_WIDTH && tag != TIFF_IMAGE_LENGTH) {
+                continue;
+            }
+            int type = entries.getShort(offset + 2) & 0xFFFF;
+            int value;
+            if (type == TIFF_SHORT) {
+                value = entries.getShort(offset + 8) & 0xFFFF;
+            } else if (type == TIFF_LONG) {
+                value = entries.getInt(offset + 8);
+            } else {
+                continue;
+            }
+            if (tag == TIFF_IMAGE_WIDTH) {
+                width = value;
+            } else {
+                height = value;
+            }
+        }
+        return dimension(width, height);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Nullable
+    private static Dimension dimension(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new Dimension(width, height);
+    }
+}
@@ -0,0 +1,97 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Пишет выгрузку в том же формате, что читает JsonIOHelper.parseMedia (zip с массивом media.json),
+ * но по одной записи, без сбора всего списка в памяти.
+ * Файл пишется во временный и заменяет прежний только в commit(), неудачная выгрузка старый архив не портит.
+ * Выгрузка в порядке Media::compareTo помечается комментарием архива SORTED_COMMENT, см. MediaReader.isSorted.
+ */
+public class JsonMediaWriter implements MediaSink {
+    private static final ObjectWriter MEDIA_WRITER = new ObjectMapper().writer()
+                                                                       .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final Metrics.Timer WRITE_TIMER = Metrics.timer("json.write");
+    static final String SORTED_COMMENT = "sorted";
+
+    private final Path outputFile;
+    private final Path tmpFile;
+    private final ZipOutputStream zipOutputStream;
+    private final CountingOutputStream countingStream;
+    private final JsonGenerator generator;
+    @Nullable
+    private Media previous;
+    private boolean sorted = true;
+    private long count;
+    private long written;
+    private boolean committed;
+
+    public JsonMediaWriter(Path outputFile) throws IOException {
+        this.outputFile = outputFile;
+        this.tmpFile = outputFile.resolveSibling(outputFile.getFileName() + ".tmp");
+        zipOutputStream = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), BUFFER_SIZE), StandardCharsets.UTF_8);
+        zipOutputStream.putNextEntry(new ZipEntry("media.json"));
+        zipOutputStream.setLevel(5);
+        countingStream = new CountingOutputStream(zipOutputStream);
+        generator = MEDIA_WRITER.getFactory().createGenerator(countingStream);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.writeStartArray();
+    }
+
+    @Override
+    public void accept(Media media) throws IOException {
+        long start = System.nanoTime();
+        MEDIA_WRITER.writeValue(generator, media);
+        //байты записи - переданные в zip и оставшиеся в буфере генератора
+        long position = countingStream.getCount() + generator.getOutputBuffered();
+        WRITE_TIMER.record(start, position - written);
+        written = position;
+        if (previous != null && previous.compareTo(media) > 0) {
+            sorted = false;
+        }
+        previous = media;
+        ++count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    //вызывается после успешной выгрузки всех записей
+    public void commit() throws IOException {
+        try {
+            generator.writeEndArray();
+            generator.close();
+            zipOutputStream.closeEntry();
+            if (sorted) {
+                zipOutputStream.setComment(SORTED_COMMENT);
+            }
+        } finally {
+            zipOutputStream.close();
+        }
+        Files.move(tmpFile, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            zipOutputStream.close();
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ru.alejov.media.gallery;
+
+/**
+ * Открытая адресация long -> int без упаковки: ключи и значения в двух массивах, линейное пробирование.
+ * Для миллионов ключей занимает 12 байт на слот вместо ~60 байт на запись HashMap&lt;Long, Integer&gt;.
+ * Ключ 0 хранится отдельно, потому что 0 в массиве ключей - пустой слот.
+ */
+final class LongIntHashMap {
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int shift;
+    private int size;
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 2 / 3 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return size + (hasZeroKey ? 1 : 0);
+    }
+
+    int get(long key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        for (int index = index(key); keys[index] != 0; index = (index + 1) & mask) {
+            if (keys[index] == key) {
+                return values[index];
+            }
+        }
+        return defaultValue;
+    }
+
+    void put(long key, int value) {
+        add(key, value, false);
+    }
+
+    //возвращает новое значение, отсутствующий ключ считается нулем
+    int increment(long key) {
+        return add(key, 1, true);
+    }
+
+    private int add(long key, int value, boolean increment) {
+        if (key == 0) {
+            zeroValue = increment && hasZeroKey ? zeroValue + value : value;
+            hasZeroKey = true;
+            return zeroValue;
+        }
+        int index = index(key);
+        for (; keys[index] != 0; index = (index + 1) & mask) {
+            if (keys[index] == key) {
+                values[index] = increment ? values[index] + value : value;
+                return values[index];
+            }
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > keys.length * 2 / 3) {
+            rehash();
+        }
+        return value;
+    }
+
+    private int index(long key) {
+        return (int) ((key * PHI) >>> shift);
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != 0) {
+                int index = index(key);
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+}
@@ -1,30 +1,70 @@
 package ru.alejov.media.gallery;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Timestamp;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import static ru.alejov.media.gallery.init.FillContentHelper.log;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Запись каталога в компактном виде, каталог из миллионов записей держится в памяти целиком.
+ * Время - микросекунды от эпохи (точность timestamp в PostgreSQL), Timestamp создается при чтении.
+ * Пути - массив пар хост, путь с общими строками хостов; локальный путь - номер пары, Path создается при чтении.
+ * Метаданные - битовая маска тегов MetaTag и значения по порядку имен тегов, прочие ключи - парами в конце.
+ * getPaths и getMetadata возвращают неизменяемые представления этих массивов с прежним порядком ключей.
+ * Ключ сортировки (имя без '_' и '-') не хранится, сравнение пропускает эти символы на ходу.
+ */
+@JsonPropertyOrder({"name", "createdAt", "lastModify", "paths", "size", "type", "metadata", "md5Hash", "quickHash", "perceptualHash"})
 public final class Media implements Comparable<Media> {
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final String[] NO_VALUES = new String[0];
+    //теги по алфавиту: бит i маски - TAGS_BY_NAME[i], порядок как в TreeMap
+    private static final MetaTag[] TAGS_BY_NAME = MetaTag.values().clone();
+    private static final int[] TAG_BITS = new int[TAGS_BY_NAME.length];
+    private static final Map<String, String> HOST_NAMES = new ConcurrentHashMap<>();
+
+    static {
+        Arrays.sort(TAGS_BY_NAME, Comparator.comparing(MetaTag::name));
+        for (int i = 0; i < TAGS_BY_NAME.length; i++) {
+            TAG_BITS[TAGS_BY_NAME[i].ordinal()] = i;
+        }
+    }
+
     private final String name;
-    private Timestamp createdAt;
-    private final Timestamp lastModify;
-    private final Map<String, String> paths;
+    private long createdAtMicros;
+    private final long lastModifyMicros;
+    @Nullable
+    private final String[] pathPairs;
     private final long size;
     private final String type;
-    private Map<String, String> metadata;
+    private int metadataTags;
+    @Nullable
+    private String[] metadataValues;
+    //полный хеш: hex MD5 или с префиксом алгоритма, см. HashAlgorithm
     private String md5Hash;
-    @JsonIgnore
-    private transient final Path localPath;
-    @JsonIgnore
-    private transient final String nameToSort;
+    //размер + MD5 первого, среднего и последнего мегабайта, см. HashUtils.getQuickHash
+    private String quickHash;
+    //dHash изображения, см. PerceptualHashUtils
+    private long perceptualHash;
+    private boolean hasPerceptualHash;
+    //номер пары в pathPairs, -1 - файл не с этого устройства
+    private final byte localPathIndex;
 
+    //localPath должен совпадать с одним из путей paths
     public Media(String name,
                  Timestamp createdAt,
                  Timestamp lastModify,
@@ -35,15 +75,14 @@ public final class Media implements Comparable<Media> {
                  Map<String, String> metadata,
                  Path localPath) {
         this.name = name;
-        this.createdAt = createdAt;
-        this.lastModify = lastModify;
-        this.paths = paths;
+        this.createdAtMicros = toMicros(createdAt);
+        this.lastModifyMicros = toMicros(lastModify);
+        this.pathPairs = toPairs(paths);
         this.md5Hash = md5Hash;
         this.size = size;
         this.type = type;
-        this.metadata = metadata;
-        this.localPath = localPath;
-        this.nameToSort = name.replace("_", "").replace("-", "");
+        setMetadata(metadata);
+        this.localPathIndex = findPath(pathPairs, localPath);
     }
 
     public String getName() {
@@ -51,17 +90,27 @@ public final class Media implements Comparable<Media> {
     }
 
     public Timestamp getCreatedAt() {
-        return createdAt;
+        return toTimestamp(createdAtMicros);
     }
 
     public Map<String, String> getPaths() {
-        return paths;
+        return pathPairs != null ? new PairMap(pathPairs) : null;
     }
 
     public String getMd5Hash() {
         return md5Hash;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getQuickHash() {
+        return quickHash;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getPerceptualHash() {
+        return hasPerceptualHash ? perceptualHash : null;
+    }
+
     public long getSize() {
         return size;
     }
@@ -71,12 +120,27 @@ public final class Media implements Comparable<Media> {
     }
 
     public Map<String, String> getMetadata() {
-        return metadata;
+        return metadataValues != null ? new MetadataMap(metadataTags, metadataValues) : null;
+    }
+
+    //без представления всей карты
+    @Nullable
+    public String getMetadata(MetaTag tag) {
+        int bit = TAG_BITS[tag.ordinal()];
+        if (metadataValues == null || (metadataTags & (1 << bit)) == 0) {
+            return null;
+        }
+        return metadataValues[Integer.bitCount(metadataTags & ((1 << bit) - 1))];
     }
 
     @JsonIgnore
     public Path getLocalPath() {
-        return localPath;
+        return localPathIndex >= 0 ? Paths.get(pathPairs[localPathIndex * 2 + 1]) : null;
+    }
+
+    @JsonIgnore
+    public String getNameToSort() {
+        return name.replace("_", "").replace("-", "");
     }
 
     @Override
@@ -103,41 +167,343 @@ public final class Media implements Comparable<Media> {
     public String toString() {
         return "Media[" +
                "name=" + name + ", " +
-               "createdAt=" + createdAt + ", " +
-               "lastModify=" + lastModify + ", " +
-               "paths=" + paths + ", " +
+               "createdAt=" + getCreatedAt() + ", " +
+               "lastModify=" + getLastModify() + ", " +
+               "paths=" + getPaths() + ", " +
                "md5Hash=" + md5Hash + ", " +
+               "quickHash=" + quickHash + ", " +
+               "perceptualHash=" + getPerceptualHash() + ", " +
                "size=" + size + ", " +
                "type=" + type + ", " +
-               "metadata=" + metadata + ']';
+               "metadata=" + getMetadata() + ']';
     }
 
     @Nonnull
     public Timestamp getLastModify() {
-        return lastModify;
+        return toTimestamp(lastModifyMicros);
     }
 
-    public void calculateMd5(int threshold, AtomicInteger toThreshold, AtomicInteger progress, int totalSize) {
+    public void calculateHash(HashAlgorithm algorithm) {
         if (md5Hash == null) {
-            md5Hash = HashUtils.getMd5Hash(localPath);
+            md5Hash = HashUtils.getHash(getLocalPath(), algorithm);
         }
-        progress.incrementAndGet();
-        if (toThreshold.incrementAndGet() > threshold) {
-            toThreshold.set(0);
-            log.info("Progress {}/{}", progress, totalSize);
+    }
+
+    public void calculateQuickHash() {
+        if (quickHash == null) {
+            quickHash = HashUtils.getQuickHash(getLocalPath());
         }
     }
 
+    //как getNameToSort().compareTo(o.getNameToSort()) по знаку, без новых строк
     @Override
     public int compareTo(Media o) {
-        return nameToSort.compareTo(o.nameToSort);
+        String a = name;
+        String b = o.name;
+        //одинаковое начало имен дает одинаковое начало ключей, разделители учитываются с первого различия
+        int limit = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < limit && a.charAt(i) == b.charAt(i)) {
+            ++i;
+        }
+        int j = i;
+        while (true) {
+            while (i < a.length() && isSortSeparator(a.charAt(i))) {
+                ++i;
+            }
+            while (j < b.length() && isSortSeparator(b.charAt(j))) {
+                ++j;
+            }
+            boolean aEnded = i == a.length();
+            boolean bEnded = j == b.length();
+            if (aEnded || bEnded) {
+                return aEnded == bEnded ? 0 : aEnded ? -1 : 1;
+            }
+            char c1 = a.charAt(i++);
+            char c2 = b.charAt(j++);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
     }
 
+    //значения копируются, переданная карта дальше не используется
     public void setMetadata(Map<String, String> metadata) {
-        this.metadata = metadata;
+        if (metadata == null) {
+            metadataTags = 0;
+            metadataValues = null;
+            return;
+        }
+        if (metadata.isEmpty()) {
+            metadataTags = 0;
+            metadataValues = NO_VALUES;
+            return;
+        }
+        int tags = 0;
+        int extra = 0;
+        //тег каждого ключа определяется один раз, второй проход идет в том же порядке
+        MetaTag[] keyTags = new MetaTag[metadata.size()];
+        int k = 0;
+        for (String key : metadata.keySet()) {
+            MetaTag tag = MetaTag.of(key);
+            keyTags[k++] = tag;
+            if (tag != null) {
+                tags |= 1 << TAG_BITS[tag.ordinal()];
+            } else {
+                ++extra;
+            }
+        }
+        int tagCount = Integer.bitCount(tags);
+        String[] values = new String[tagCount + extra * 2];
+        String[] extraKeys = extra > 0 ? new String[extra] : NO_VALUES;
+        int e = 0;
+        k = 0;
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            MetaTag tag = keyTags[k++];
+            if (tag != null) {
+                int bit = TAG_BITS[tag.ordinal()];
+                values[Integer.bitCount(tags & ((1 << bit) - 1))] = entry.getValue();
+            } else {
+                extraKeys[e++] = entry.getKey();
+            }
+        }
+        //прочие ключи по алфавиту, как в TreeMap
+        Arrays.sort(extraKeys);
+        for (int x = 0; x < extra; x++) {
+            values[tagCount + x * 2] = extraKeys[x];
+            values[tagCount + x * 2 + 1] = metadata.get(extraKeys[x]);
+        }
+        metadataTags = tags;
+        metadataValues = values;
     }
 
     public void setCreateDate(Timestamp createDate) {
-        this.createdAt = createDate;
+        this.createdAtMicros = toMicros(createDate);
+    }
+
+    public void setMd5Hash(String md5Hash) {
+        this.md5Hash = md5Hash;
+    }
+
+    public void setQuickHash(String quickHash) {
+        this.quickHash = quickHash;
+    }
+
+    public void setPerceptualHash(Long perceptualHash) {
+        this.hasPerceptualHash = perceptualHash != null;
+        this.perceptualHash = perceptualHash != null ? perceptualHash : 0;
+    }
+
+    private static boolean isSortSeparator(char c) {
+        return c == '_' || c == '-';
+    }
+
+    //наносекунды округляются до микросекунд так же, как при передаче Timestamp драйвером PostgreSQL
+    static long toMicros(@Nullable Timestamp timestamp) {
+        if (timestamp == null) {
+            return NO_TIME;
+        }
+        return Math.floorDiv(timestamp.getTime(), 1000L) * 1_000_000L + (timestamp.getNanos() + 500) / 1000;
+    }
+
+    @Nullable
+    static Timestamp toTimestamp(long micros) {
+        if (micros == NO_TIME) {
+            return null;
+        }
+        Timestamp timestamp = new Timestamp(Math.floorDiv(micros, 1_000_000L) * 1000);
+        timestamp.setNanos((int) Math.floorMod(micros, 1_000_000L) * 1000);
+        return timestamp;
+    }
+
+    @Nullable
+    private static String[] toPairs(@Nullable Map<String, String> map) {
+        if (map == null) {
+            return null;
+        }
+        if (map.isEmpty()) {
+            return NO_VALUES;
+        }
+        String[] pairs = new String[map.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            String host = entry.getKey();
+            String shared = HOST_NAMES.putIfAbsent(host, host);
+            pairs[i++] = shared != null ? shared : host;
+            pairs[i++] = entry.getValue();
+        }
+        return pairs;
+    }
+
+    private static byte findPath(@Nullable String[] pairs, @Nullable Path localPath) {
+        if (localPath == null) {
+            return -1;
+        }
+        String path = localPath.toString();
+        for (int i = 1; pairs != null && i < pairs.length && i < 2 * Byte.MAX_VALUE; i += 2) {
+            if (path.equals(pairs[i])) {
+                return (byte) (i / 2);
+            }
+        }
+        throw new IllegalArgumentException("Local path " + path + " is not in paths " + (pairs != null ? Arrays.toString(pairs) : null));
+    }
+
+    //пары ключ, значение подряд; ключей мало, поиск перебором
+    private static final class PairMap extends AbstractMap<String, String> {
+        private final String[] pairs;
+
+        private PairMap(String[] pairs) {
+            this.pairs = pairs;
+        }
+
+        @Override
+        public int size() {
+            return pairs.length / 2;
+        }
+
+        @Override
+        public String get(Object key) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (pairs[i].equals(key)) {
+                    return pairs[i + 1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (pairs[i].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int i;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < pairs.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (i >= pairs.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<>(pairs[i], pairs[i + 1]);
+                            i += 2;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return pairs.length / 2;
+                }
+            };
+        }
+    }
+
+    //теги по маске и прочие ключи, слитые по алфавиту
+    private static final class MetadataMap extends AbstractMap<String, String> {
+        private final int tags;
+        private final String[] values;
+        private final int tagCount;
+
+        private MetadataMap(int tags, String[] values) {
+            this.tags = tags;
+            this.values = values;
+            this.tagCount = Integer.bitCount(tags);
+        }
+
+        @Override
+        public int size() {
+            return tagCount + (values.length - tagCount) / 2;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            MetaTag tag = MetaTag.of((String) key);
+            if (tag != null) {
+                int bit = TAG_BITS[tag.ordinal()];
+                return (tags & (1 << bit)) != 0 ? values[Integer.bitCount(tags & ((1 << bit) - 1))] : null;
+            }
+            for (int i = tagCount; i < values.length; i += 2) {
+                if (values[i].equals(key)) {
+                    return values[i + 1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+            MetaTag tag = MetaTag.of((String) key);
+            if (tag != null) {
+                return (tags & (1 << TAG_BITS[tag.ordinal()])) != 0;
+            }
+            for (int i = tagCount; i < values.length; i += 2) {
+                if (values[i].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        //оставшиеся биты тегов, номер значения тега, позиция прочего ключа
+                        private int remaining = tags;
+                        private int tagIndex;
+                        private int extra = tagCount;
+
+                        @Override
+                        public boolean hasNext() {
+                            return remaining != 0 || extra < values.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            String tagName = remaining != 0 ? TAGS_BY_NAME[Integer.numberOfTrailingZeros(remaining)].name() : null;
+                            if (tagName != null && (extra >= values.length || tagName.compareTo(values[extra]) < 0)) {
+                                remaining &= remaining - 1;
+                                return new SimpleImmutableEntry<>(tagName, values[tagIndex++]);
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<>(values[extra], values[extra + 1]);
+                            extra += 2;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return MetadataMap.this.size();
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,213 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Потоковое чтение выгрузки (массив Media в JSON) без промежуточных Map и без загрузки всего файла в память.
+ * Файлы из корзины (.trashed*) пропускаются.
+ */
+public class MediaReader implements Iterator<Media>, Closeable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Metrics.Timer READ_TIMER = Metrics.timer("json.read");
+
+    private final JsonParser parser;
+    @Nullable
+    private Media next;
+    private long trashedCount;
+    private long offset;
+
+    public MediaReader(InputStream inputStream) throws IOException {
+        parser = JSON_FACTORY.createParser(inputStream);
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "Expected array of media");
+        }
+        next = readNext();
+    }
+
+    //первый элемент zip-архива, как в выгрузке JsonMediaWriter
+    public static MediaReader open(Path zipFile) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(zipFile));
+        try {
+            zipInputStream.getNextEntry();
+            return new MediaReader(zipInputStream);
+        } catch (IOException | RuntimeException e) {
+            zipInputStream.close();
+            throw e;
+        }
+    }
+
+    //выгрузка, записанная в порядке Media::compareTo, может сливаться с БД без сортировки в памяти.
+    //Порядок отмечает JsonMediaWriter в комментарии архива, читается только центральный каталог zip;
+    //у выгрузок без отметки порядок неизвестен
+    public static boolean isSorted(Path zipFile) throws IOException {
+        try (ZipFile file = new ZipFile(zipFile.toFile())) {
+            return JsonMediaWriter.SORTED_COMMENT.equals(file.getComment());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Media next() {
+        Media media = next;
+        if (media == null) {
+            throw new NoSuchElementException();
+        }
+        try {
+            next = readNext();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return media;
+    }
+
+    public long getTrashedCount() {
+        return trashedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    @Nullable
+    private Media readNext() throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            long start = System.nanoTime();
+            Media media = readMedia(parser);
+            long position = parser.currentLocation().getByteOffset();
+            READ_TIMER.record(start, position - offset);
+            offset = position;
+            if (!media.getName().startsWith(".trashed")) {
+                return media;
+            }
+            ++trashedCount;
+        }
+        if (parser.currentToken() != JsonToken.END_ARRAY) {
+            throw new JsonParseException(parser, "Expected media object");
+        }
+        return null;
+    }
+
+    //одна запись в строке, как пишет ProgressJournal
+    static Media parseMedia(String json) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected media object");
+            }
+            Media media = readMedia(parser);
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException(parser, "Unexpected end of media object");
+            }
+            return media;
+        }
+    }
+
+    private static Media readMedia(JsonParser parser) throws IOException {
+        String name = null;
+        Timestamp createdAt = null;
+        Timestamp lastModify = null;
+        Map<String, String> paths = null;
+        String md5Hash = null;
+        String quickHash = null;
+        Long perceptualHash = null;
+        long size = 0;
+        String type = null;
+        Map<String, String> metadata = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "name":
+                    name = parser.getValueAsString();
+                    break;
+                case "createdAt":
+                    createdAt = readTimestamp(parser);
+                    break;
+                case "lastModify":
+                    lastModify = readTimestamp(parser);
+                    break;
+                case "paths":
+                    paths = readStringMap(parser);
+                    break;
+                case "md5Hash":
+                    md5Hash = parser.getValueAsString();
+                    break;
+                case "quickHash":
+                    quickHash = parser.getValueAsString();
+                    break;
+                case "perceptualHash":
+                    perceptualHash = parser.currentToken() == JsonToken.VALUE_NULL ? null : parser.getValueAsLong();
+                    break;
+                case "size":
+                    size = parser.getValueAsLong();
+                    break;
+                case "type":
+                    type = parser.getValueAsString();
+                    break;
+                case "metadata":
+                    metadata = readStringMap(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        if (name == null) {
+            throw new JsonParseException(parser, "Media without name");
+        }
+        if (metadata != null) {
+            MetadataUtils.clearMetadataValues(metadata);
+        }
+        Media media = new Media(name, createdAt, lastModify, paths, md5Hash, size, type, metadata, null);
+        media.setQuickHash(quickHash);
+        media.setPerceptualHash(perceptualHash);
+        return media;
+    }
+
+    @Nullable
+    private static Timestamp readTimestamp(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        return new Timestamp(parser.getLongValue());
+    }
+
+    @Nullable
+    private static Map<String, String> readStringMap(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected object");
+        }
+        Map<String, String> map = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.currentName();
+            parser.nextToken();
+            map.put(key, parser.getValueAsString());
+        }
+        return map;
+    }
+}
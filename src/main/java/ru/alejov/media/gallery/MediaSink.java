@@ -0,0 +1,13 @@
+package ru.alejov.media.gallery;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+public interface MediaSink extends AutoCloseable {
+
+    void accept(Media media) throws IOException, SQLException;
+
+    @Override
+    default void close() throws IOException, SQLException {
+    }
+}
@@ -0,0 +1,9 @@
+package ru.alejov.media.gallery;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+public interface MediaSource {
+
+    void drainTo(MediaSink sink) throws IOException, SQLException;
+}
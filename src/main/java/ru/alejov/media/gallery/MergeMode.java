@@ -0,0 +1,16 @@
+package ru.alejov.media.gallery;
+
+import java.util.Locale;
+
+public enum MergeMode {
+    //построчное сравнение курсора БД со списком в памяти
+    LOCKSTEP,
+    //список загружается через COPY во временную таблицу и сливается несколькими SQL
+    STAGING,
+    //построчное сравнение, диапазоны имен обрабатываются параллельно в нескольких соединениях
+    PARTITIONED;
+
+    public static MergeMode of(String s) {
+        return MergeMode.valueOf(s.trim().toUpperCase(Locale.ROOT));
+    }
+}
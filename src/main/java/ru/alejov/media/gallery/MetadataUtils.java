@@ -1,25 +1,54 @@
 package ru.alejov.media.gallery;
 
 import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.ImagingException;
 import org.apache.commons.imaging.common.ImageMetadata;
+import org.apache.commons.imaging.common.RationalNumber;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.png.PngImageMetadata;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.GpsTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.nio.file.Path;
+import java.text.NumberFormat;
 import java.util.Collections;
-import java.util.List;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.Objects;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
 
 import static ru.alejov.media.gallery.init.FillContentHelper.log;
 
 public class MetadataUtils {
 
 
+    private static final ThreadLocal<NumberFormat> NUMBER_FORMAT = ThreadLocal.withInitial(NumberFormat::getInstance);
+    private static final Map<MetaTag, TagInfo> TIFF_TAGS = new EnumMap<>(MetaTag.class);
+
+    static {
+        TIFF_TAGS.put(MetaTag.ExifImageWidth, ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH);
+        TIFF_TAGS.put(MetaTag.ImageWidth, TiffTagConstants.TIFF_TAG_IMAGE_WIDTH);
+        TIFF_TAGS.put(MetaTag.ExifImageLength, ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH);
+        TIFF_TAGS.put(MetaTag.ImageLength, TiffTagConstants.TIFF_TAG_IMAGE_LENGTH);
+        TIFF_TAGS.put(MetaTag.DateTimeOriginal, ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
+        TIFF_TAGS.put(MetaTag.Make, TiffTagConstants.TIFF_TAG_MAKE);
+        TIFF_TAGS.put(MetaTag.Model, TiffTagConstants.TIFF_TAG_MODEL);
+        TIFF_TAGS.put(MetaTag.GPSLatitude, GpsTagConstants.GPS_TAG_GPS_LATITUDE);
+        TIFF_TAGS.put(MetaTag.GPSLatitudeRef, GpsTagConstants.GPS_TAG_GPS_LATITUDE_REF);
+        TIFF_TAGS.put(MetaTag.GPSLongitude, GpsTagConstants.GPS_TAG_GPS_LONGITUDE);
+        TIFF_TAGS.put(MetaTag.GPSLongitudeRef, GpsTagConstants.GPS_TAG_GPS_LONGITUDE_REF);
+        TIFF_TAGS.put(MetaTag.Software, TiffTagConstants.TIFF_TAG_SOFTWARE);
+        TIFF_TAGS.put(MetaTag.Orientation, TiffTagConstants.TIFF_TAG_ORIENTATION);
+    }
+
     @Nonnull
     public static Map<String, String> getMetadata(Path path, String type) {
         Map<String, String> metadata = Collections.emptyMap();
@@ -27,29 +56,22 @@ public class MetadataUtils {
             try {
                 ImageMetadata imageMetadata = Imaging.getMetadata(path.toFile());
                 if (imageMetadata != null) {
-                    List<? extends ImageMetadata.ImageMetadataItem> items = imageMetadata.getItems();
-                    List<Tag> tagList = items.stream()
-                                             .map(Objects::toString)
-                                             .map(Tag::parse)
-                                             .filter(Objects::nonNull)
-                                             .collect(Collectors.toList());
-                    metadata = new TreeMap<>();
-                    boolean hasSize = false;
-                    for (Tag tag : tagList) {
-                        metadata.put(tag.key.name(), tag.value);
-                        if (tag.key == MetaTag.ImageWidth || tag.key == MetaTag.ExifImageWidth) {
-                            hasSize = true;
-                        }
+                    TiffImageMetadata exif = getExif(imageMetadata);
+                    metadata = exif != null ? getTiffMetadata(exif) : getItemsMetadata(imageMetadata);
+                    String exifWidth = metadata.remove(MetaTag.ExifImageWidth.name());
+                    String exifHeight = metadata.remove(MetaTag.ExifImageLength.name());
+                    if (exifWidth != null) {
+                        metadata.put(MetaTag.ImageWidth.name(), exifWidth);
+                        metadata.put(MetaTag.ImageLength.name(), exifHeight);
                     }
-                    if (!hasSize) {
-                        BufferedImage bufferedImage = Imaging.getBufferedImage(path.toFile());
-                        int width = bufferedImage.getWidth();
-                        int height = bufferedImage.getHeight();
-                        metadata.put(MetaTag.ImageWidth.name(), String.valueOf(width));
-                        metadata.put(MetaTag.ImageLength.name(), String.valueOf(height));
-                    } else {
-                        metadata.put(MetaTag.ImageWidth.name(), metadata.remove(MetaTag.ExifImageWidth.name()));
-                        metadata.put(MetaTag.ImageLength.name(), metadata.remove(MetaTag.ExifImageLength.name()));
+                    if (!metadata.containsKey(MetaTag.ImageWidth.name())) {
+                        Dimension size = ImageSizeUtils.getImageSize(path);
+                        if (size == null) {
+                            BufferedImage bufferedImage = Imaging.getBufferedImage(path.toFile());
+                            size = new Dimension(bufferedImage.getWidth(), bufferedImage.getHeight());
+                        }
+                        metadata.put(MetaTag.ImageWidth.name(), String.valueOf(size.width));
+                        metadata.put(MetaTag.ImageLength.name(), String.valueOf(size.height));
                     }
                 }
             } catch (Exception e) {
@@ -59,6 +81,98 @@ public class MetadataUtils {
         return metadata;
     }
 
+    @Nullable
+    private static TiffImageMetadata getExif(ImageMetadata imageMetadata) {
+        if (imageMetadata instanceof TiffImageMetadata) {
+            return (TiffImageMetadata) imageMetadata;
+        } else if (imageMetadata instanceof JpegImageMetadata) {
+            return ((JpegImageMetadata) imageMetadata).getExif();
+        } else if (imageMetadata instanceof PngImageMetadata) {
+            return ((PngImageMetadata) imageMetadata).getExif();
+        }
+        return null;
+    }
+
+    @Nonnull
+    public static Map<String, String> getTiffMetadata(TiffImageMetadata exif) throws ImagingException {
+        Map<String, String> metadata = new TreeMap<>();
+        for (Map.Entry<MetaTag, TagInfo> entry : TIFF_TAGS.entrySet()) {
+            TiffField field = exif.findField(entry.getValue(), true);
+            if (field != null) {
+                MetaTag metaTag = entry.getKey();
+                metadata.put(metaTag.name(), getValue(metaTag, field));
+            }
+        }
+        return metadata;
+    }
+
+    //значения приводятся к тому же виду, что и при разборе через Tag.parse, чтобы не расходиться с уже сохраненными
+    @Nullable
+    private static String getValue(MetaTag metaTag, TiffField field) {
+        try {
+            switch (metaTag) {
+                case ExifImageWidth:
+                case ImageWidth:
+                case ExifImageLength:
+                case ImageLength:
+                case Orientation:
+                    return String.valueOf(field.getIntValue());
+                case DateTimeOriginal:
+                case GPSLatitudeRef:
+                case GPSLongitudeRef:
+                    return StringUtils.strip(StringUtils.remove(field.getStringValue(), ':'));
+                case Make:
+                case Model:
+                case Software:
+                    return StringUtils.strip(StringUtils.remove(StringUtils.remove(field.getStringValue(), ':'), ','));
+                case GPSLatitude:
+                case GPSLongitude:
+                    Object value = field.getValue();
+                    if (value instanceof RationalNumber[]) {
+                        return toString((RationalNumber[]) value);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (ImagingException ignored) {
+        }
+        Tag tag = Tag.parse(metaTag.name() + ": " + field.getValueDescription());
+        return tag != null ? tag.value : null;
+    }
+
+    //то же, что RationalNumber.toString(), но без создания NumberFormat на каждое значение
+    private static String toString(RationalNumber[] values) {
+        NumberFormat numberFormat = NUMBER_FORMAT.get();
+        StringBuilder sb = new StringBuilder();
+        for (RationalNumber value : values) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            if (value.divisor == 0) {
+                sb.append("Invalid rational (").append(value.numerator).append('/').append(value.divisor).append(')');
+            } else if (value.numerator % value.divisor == 0) {
+                sb.append(numberFormat.format(value.numerator / value.divisor));
+            } else {
+                sb.append(value.numerator).append('/').append(value.divisor)
+                  .append(" (").append(numberFormat.format((double) value.numerator / value.divisor)).append(')');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Nonnull
+    private static Map<String, String> getItemsMetadata(ImageMetadata imageMetadata) {
+        Map<String, String> metadata = new TreeMap<>();
+        for (ImageMetadata.ImageMetadataItem item : imageMetadata.getItems()) {
+            Tag tag = Tag.parse(item.toString());
+            if (tag != null) {
+                metadata.put(tag.key.name(), tag.value);
+            }
+        }
+        return metadata;
+    }
+
     public static void clearMetadataValues(@Nonnull Map<String, String> input) {
         input.replaceAll((String key, String value) -> clearMetadata(value));
     }
@@ -0,0 +1,156 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики и гистограммы длительностей операций за запуск: обход, метаданные, хеши, чтение и запись JSON,
+ * запросы к БД. Таймеры создаются один раз в статических полях классов, запись - несколько счетчиков
+ * без блокировок. Отчет пишется в JSON и рядом в текстовом формате Prometheus (.prom) для node_exporter.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final Map<String, Timer> TIMERS = new LinkedHashMap<>();
+    private static final long STARTED_AT = System.currentTimeMillis();
+    private static final long STARTED_NANOS = System.nanoTime();
+
+    private Metrics() {
+    }
+
+    public static synchronized Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, Timer::new);
+    }
+
+    //файл Prometheus - jsonFile с расширением .prom вместо .json
+    public static Path writeReport(Path jsonFile) throws IOException {
+        List<Timer> timers = new ArrayList<>();
+        synchronized (Metrics.class) {
+            for (Timer timer : TIMERS.values()) {
+                if (timer.count.sum() > 0) {
+                    timers.add(timer);
+                }
+            }
+        }
+        writeJson(jsonFile, timers);
+        String fileName = jsonFile.getFileName().toString();
+        Path prometheusFile = jsonFile.resolveSibling((fileName.endsWith(".json") ? fileName.substring(0, fileName.length() - 5) : fileName) + ".prom");
+        writePrometheus(prometheusFile, timers);
+        return prometheusFile;
+    }
+
+    private static void writeJson(Path file, List<Timer> timers) throws IOException {
+        try (JsonGenerator generator = new JsonFactory().createGenerator(Files.newBufferedWriter(file))) {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeStringField("startedAt", Instant.ofEpochMilli(STARTED_AT).toString());
+            generator.writeNumberField("durationSeconds", seconds(System.nanoTime() - STARTED_NANOS));
+            generator.writeObjectFieldStart("operations");
+            for (Timer timer : timers) {
+                long count = timer.count.sum();
+                long nanos = timer.nanos.sum();
+                long bytes = timer.bytes.sum();
+                generator.writeObjectFieldStart(timer.name);
+                generator.writeNumberField("count", count);
+                generator.writeNumberField("totalSeconds", seconds(nanos));
+                if (bytes > 0) {
+                    generator.writeNumberField("bytes", bytes);
+                    //по времени самих операций, а не запуска: при нескольких потоках сумма их скоростей
+                    generator.writeNumberField("bytesPerSecond", nanos > 0 ? (long) (bytes / seconds(nanos)) : bytes);
+                }
+                generator.writeNumberField("meanMillis", millis(nanos / count));
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    generator.writeNumberField(QUANTILE_NAMES[i] + "Millis", millis(timer.percentile(QUANTILES[i])));
+                }
+                generator.writeNumberField("maxMillis", millis(timer.max.get()));
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writePrometheus(Path file, List<Timer> timers) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# HELP media_gallery_operation_seconds Duration of media gallery operations.\n");
+            writer.write("# TYPE media_gallery_operation_seconds summary\n");
+            for (Timer timer : timers) {
+                String label = "operation=\"" + timer.name + "\"";
+                for (double quantile : QUANTILES) {
+                    writer.write("media_gallery_operation_seconds{" + label + ",quantile=\"" + quantile + "\"} "
+                                 + seconds(timer.percentile(quantile)) + "\n");
+                }
+                writer.write("media_gallery_operation_seconds_sum{" + label + "} " + seconds(timer.nanos.sum()) + "\n");
+                writer.write("media_gallery_operation_seconds_count{" + label + "} " + timer.count.sum() + "\n");
+            }
+            writer.write("# HELP media_gallery_operation_max_seconds Longest media gallery operation.\n");
+            writer.write("# TYPE media_gallery_operation_max_seconds gauge\n");
+            for (Timer timer : timers) {
+                writer.write("media_gallery_operation_max_seconds{operation=\"" + timer.name + "\"} " + seconds(timer.max.get()) + "\n");
+            }
+            writer.write("# HELP media_gallery_operation_bytes_total Bytes read or written by media gallery operations.\n");
+            writer.write("# TYPE media_gallery_operation_bytes_total counter\n");
+            for (Timer timer : timers) {
+                long bytes = timer.bytes.sum();
+                if (bytes > 0) {
+                    writer.write("media_gallery_operation_bytes_total{operation=\"" + timer.name + "\"} " + bytes + "\n");
+                }
+            }
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public static final class Timer {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        //startNanos - System.nanoTime() перед операцией
+        public void record(long startNanos) {
+            record(startNanos, 0);
+        }
+
+        public void record(long startNanos, long bytes) {
+            long elapsed = System.nanoTime() - startNanos;
+            count.increment();
+            nanos.add(elapsed);
+            if (bytes > 0) {
+                this.bytes.add(bytes);
+            }
+            max.accumulate(elapsed);
+            histogram.record(elapsed);
+        }
+
+        //верхняя граница корзины гистограммы может быть больше самого длинного значения
+        private long percentile(double quantile) {
+            return Math.min(histogram.percentile(quantile), max.get());
+        }
+    }
+}
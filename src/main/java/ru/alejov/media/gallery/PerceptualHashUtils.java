@@ -0,0 +1,128 @@
+package ru.alejov.media.gallery;
+
+import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+/**
+ * dHash изображения: картинка в оттенках серого сжимается до сетки 9x8, бит - левая клетка пары соседей ярче правой.
+ * Пересжатые, уменьшенные и повернутые по EXIF копии дают хеш на расстоянии Хэмминга в несколько бит.
+ * Изображение декодируется с прореживанием (setSourceSubsampling), до ~64 пикселей по короткой стороне.
+ */
+public class PerceptualHashUtils {
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+    private static final int DECODE_SIZE = 64;
+
+    //null - формат не читается ImageIO или файл поврежден
+    @Nullable
+    public static Long getDHash(Path path, @Nullable String orientation) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int step = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / DECODE_SIZE);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return getDHash(reader.read(0, param), parseOrientation(orientation));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Image {} perceptual hash error: {}", path, e.toString());
+            return null;
+        }
+    }
+
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    //orientation - значение EXIF 1..8, сетка строится для изображения в том виде, в каком его показывают
+    static long getDHash(BufferedImage image, int orientation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean transposed = orientation >= 5 && orientation <= 8;
+        int shownWidth = transposed ? height : width;
+        int shownHeight = transposed ? width : height;
+        long[] sums = new long[GRID_WIDTH * GRID_HEIGHT];
+        int[] counts = new int[GRID_WIDTH * GRID_HEIGHT];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int shownX;
+                int shownY;
+                switch (orientation) {
+                    case 2:
+                        shownX = width - 1 - x;
+                        shownY = y;
+                        break;
+                    case 3:
+                        shownX = width - 1 - x;
+                        shownY = height - 1 - y;
+                        break;
+                    case 4:
+                        shownX = x;
+                        shownY = height - 1 - y;
+                        break;
+                    case 5:
+                        shownX = y;
+                        shownY = x;
+                        break;
+                    case 6:
+                        shownX = height - 1 - y;
+                        shownY = x;
+                        break;
+                    case 7:
+                        shownX = height - 1 - y;
+                        shownY = width - 1 - x;
+                        break;
+                    case 8:
+                        shownX = y;
+                        shownY = width - 1 - x;
+                        break;
+                    default:
+                        shownX = x;
+                        shownY = y;
+                }
+                int rgb = row[x];
+                int cell = (int) ((long) shownY * GRID_HEIGHT / shownHeight) * GRID_WIDTH + (int) ((long) shownX * GRID_WIDTH / shownWidth);
+                sums[cell] += ((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114;
+                ++counts[cell];
+            }
+        }
+        long hash = 0;
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            for (int x = 0; x < GRID_WIDTH - 1; x++) {
+                int left = y * GRID_WIDTH + x;
+                //средние сравниваются без деления: sum1 / count1 > sum2 / count2
+                hash = (hash << 1) | (sums[left] * counts[left + 1] > sums[left + 1] * counts[left] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    static int parseOrientation(@Nullable String orientation) {
+        if (orientation != null) {
+            try {
+                return Integer.parseInt(orientation.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return 1;
+    }
+}
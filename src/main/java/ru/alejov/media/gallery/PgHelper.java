@@ -1,14 +1,24 @@
 package ru.alejov.media.gallery;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 
 import javax.annotation.Nullable;
 import javax.sql.DataSource;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -16,28 +26,36 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("ConcatenationWithEmptyString")
 public class PgHelper {
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, String>> STRING_MAP = new TypeReference<Map<String, String>>() {
+    };
     private static final String INSERT_OR_SELECT_SQL = ""
                                                        + "WITH sel AS (\n"
                                                        + "     SELECT *\n"
                                                        + "       FROM media\n"
                                                        + "      WHERE name = ?),\n"
                                                        + "ins AS (\n"
-                                                       + "     INSERT INTO media(name, create_date, metadata, paths, type, file_size, hash_md5, last_modify)\n"
-                                                       + "     VALUES (?, ?, ?::jsonb, ?::jsonb, ?, ?, ?, ?)\n"
+                                                       + "     INSERT INTO media(name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual)\n"
+                                                       + "     VALUES (?, ?, ?::jsonb, ?::jsonb, ?, ?, ?, ?, ?, ?)\n"
                                                        + "     ON CONFLICT (name)\n"
                                                        + "     DO NOTHING\n"
                                                        + "     RETURNING *)\n"
@@ -49,11 +67,10 @@ public class PgHelper {
                                                        + "       true AS new_file\n"
                                                        + "  FROM ins";
     private static final String INSERT_SQL = ""
-                                             + "INSERT INTO media(name, create_date, metadata, paths, type, file_size, hash_md5, last_modify)\n"
-                                             + "VALUES (?, ?, ?::jsonb, ?::jsonb, ?, ?, ?, ?)\n"
+                                             + "INSERT INTO media(name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual)\n"
+                                             + "VALUES (?, ?, ?::jsonb, ?::jsonb, ?, ?, ?, ?, ?, ?)\n"
                                              + "ON CONFLICT (name)\n"
-                                             + "DO NOTHING\n"
-                                             + "RETURNING id";
+                                             + "DO NOTHING";
     private static final String SELECT_BY_NAME = ""
                                                  + "SELECT *\n"
                                                  + "  FROM media\n"
@@ -69,13 +86,45 @@ public class PgHelper {
                                              + "       replace(replace(name,'-',''),'_','') AS name_to_sort,\n"
                                              + "       file_size,\n"
                                              + "       hash_md5,\n"
+                                             + "       hash_quick,\n"
+                                             + "       hash_perceptual,\n"
                                              + "       paths\n"
                                              + "  FROM media\n"
                                              + " ORDER BY name_to_sort";
+    private static final String SELECT_RANGE_SQL = ""
+                                                   + "SELECT id,\n"
+                                                   + "       name,\n"
+                                                   + "       last_modify,\n"
+                                                   + "       replace(replace(name,'-',''),'_','') AS name_to_sort,\n"
+                                                   + "       file_size,\n"
+                                                   + "       hash_md5,\n"
+                                                   + "       hash_quick,\n"
+                                                   + "       hash_perceptual,\n"
+                                                   + "       paths\n"
+                                                   + "  FROM media\n"
+                                                   + " WHERE replace(replace(name,'-',''),'_','') COLLATE \"C\" >= ?\n"
+                                                   + "   AND (?::text IS NULL OR replace(replace(name,'-',''),'_','') COLLATE \"C\" < ?)\n"
+                                                   + " ORDER BY replace(replace(name,'-',''),'_','') COLLATE \"C\"";
+    //каталог без метаданных для поиска копий
+    private static final String SELECT_CATALOG_SQL = ""
+                                                     + "SELECT name,\n"
+                                                     + "       create_date,\n"
+                                                     + "       last_modify,\n"
+                                                     + "       paths,\n"
+                                                     + "       file_size,\n"
+                                                     + "       type,\n"
+                                                     + "       hash_md5,\n"
+                                                     + "       hash_quick,\n"
+                                                     + "       hash_perceptual\n"
+                                                     + "  FROM media";
     private static final String UPDATE_MD5_SQL = ""
                                                  + "UPDATE media\n"
                                                  + "   SET hash_md5 = ?\n"
                                                  + " WHERE id = ?";
+    private static final String UPDATE_PERCEPTUAL_HASH_SQL = ""
+                                                             + "UPDATE media\n"
+                                                             + "   SET hash_perceptual = ?\n"
+                                                             + " WHERE id = ?";
     private static final String UPDATE_NAME_SQL = ""
                                                   + "UPDATE media\n"
                                                   + "   SET name = ?\n"
@@ -84,37 +133,189 @@ public class PgHelper {
                                                    + "UPDATE media\n"
                                                    + "   SET paths = ?::jsonb\n"
                                                    + " WHERE id = ?";
+    //колонки берем из media, чтобы не дублировать схему
+    private static final String CREATE_COPY_TABLE_SQL = ""
+                                                        + "CREATE TEMPORARY TABLE media_copy AS\n"
+                                                        + "SELECT 0::bigint AS ord, name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual\n"
+                                                        + "  FROM media\n"
+                                                        + "  WITH NO DATA";
+    private static final String COPY_SQL = ""
+                                           + "COPY media_copy(ord, name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual)\n"
+                                           + "FROM STDIN";
+    //порядок ord сохраняет поведение построчной вставки: из одноименных файлов остается первый
+    private static final String INSERT_FROM_COPY_SQL = ""
+                                                       + "INSERT INTO media(name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual)\n"
+                                                       + "SELECT name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual\n"
+                                                       + "  FROM media_copy\n"
+                                                       + " ORDER BY ord\n"
+                                                       + "ON CONFLICT (name)\n"
+                                                       + "DO NOTHING";
+    private static final String TRUNCATE_COPY_TABLE_SQL = "TRUNCATE media_copy";
+    private static final String DROP_COPY_TABLE_SQL = "DROP TABLE IF EXISTS media_copy";
+    private static final String CREATE_SCAN_TABLE_SQL = ""
+                                                        + "CREATE TEMPORARY TABLE media_scan AS\n"
+                                                        + "SELECT 0::bigint AS ord, name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual,\n"
+                                                        + "       false AS local\n"
+                                                        + "  FROM media\n"
+                                                        + "  WITH NO DATA";
+    private static final String COPY_SCAN_SQL = ""
+                                                + "COPY media_scan(ord, name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual, local)\n"
+                                                + "FROM STDIN";
+    //те же условия, что в mergeSameFiles: для файлов с диска пути сравниваются целиком, для файлов из выгрузки - только устройства.
+    //Повторы имени внутри сканирования, файлы другого размера и файлы, которым нужен полный хеш или хеш алгоритмом из БД ('row'),
+    //обрабатываются построчно. Префикс хеша - алгоритм, у MD5 его нет
+    private static final String CREATE_MERGE_TABLE_SQL = ""
+                                                         + "CREATE TEMPORARY TABLE media_merge AS\n"
+                                                         + "SELECT s.*,\n"
+                                                         + "       CASE\n"
+                                                         + "       WHEN s.rn > 1 OR d.file_size <> s.file_size THEN 'row'\n"
+                                                         + "       WHEN d.name IS NULL THEN 'insert'\n"
+                                                         + "       WHEN s.local AND d.last_modify <> s.last_modify AND s.hash_quick IS NOT NULL AND s.hash_md5 IS NULL\n"
+                                                         + "            AND d.hash_md5 IS NOT NULL AND coalesce(d.hash_quick = s.hash_quick, true) THEN 'row'\n"
+                                                         + "       WHEN s.local AND d.last_modify <> s.last_modify AND s.hash_md5 IS NOT NULL AND d.hash_md5 IS NOT NULL\n"
+                                                         + "            AND substring(d.hash_md5 FROM '^[^:]*:') IS DISTINCT FROM substring(s.hash_md5 FROM '^[^:]*:')\n"
+                                                         + "            AND coalesce(d.hash_quick = s.hash_quick, true) THEN 'row'\n"
+                                                         + "       WHEN d.last_modify = s.last_modify\n"
+                                                         + "            OR d.hash_md5 IS NOT DISTINCT FROM s.hash_md5 AND coalesce(d.hash_quick = s.hash_quick, true) THEN\n"
+                                                         + "            CASE\n"
+                                                         + "            WHEN EXISTS (SELECT 1 FROM jsonb_object_keys(s.paths) k WHERE d.paths -> k IS NULL) THEN 'merge'\n"
+                                                         + "            WHEN s.local AND NOT d.paths @> s.paths THEN 'relocate'\n"
+                                                         + "            ELSE 'here'\n"
+                                                         + "            END\n"
+                                                         + "       WHEN d.hash_md5 IS NULL AND s.hash_md5 IS NOT NULL THEN 'md5'\n"
+                                                         + "       ELSE 'skip'\n"
+                                                         + "       END AS action\n"
+                                                         + "  FROM (SELECT *, row_number() OVER (PARTITION BY name ORDER BY ord) AS rn\n"
+                                                         + "          FROM media_scan) s\n"
+                                                         + "  LEFT JOIN media d ON d.name = s.name";
+    //как в построчном слиянии: записи БД после последнего файла сканирования в порядке name_to_sort оно не просматривает
+    private static final String SELECT_ELSEWHERE_SQL = ""
+                                                       + "SELECT d.name,\n"
+                                                       + "       d.paths\n"
+                                                       + "  FROM media d\n"
+                                                       + " WHERE d.paths -> ? IS NULL\n"
+                                                       + "   AND replace(replace(d.name,'-',''),'_','') <\n"
+                                                       + "       (SELECT max(replace(replace(s.name,'-',''),'_','')) FROM media_scan s)\n"
+                                                       + "   AND NOT EXISTS (SELECT 1 FROM media_scan s WHERE s.name = d.name)";
+    private static final String INSERT_FROM_MERGE_SQL = ""
+                                                        + "INSERT INTO media(name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual)\n"
+                                                        + "SELECT name, create_date, metadata, paths, type, file_size, hash_md5, last_modify, hash_quick, hash_perceptual\n"
+                                                        + "  FROM media_merge\n"
+                                                        + " WHERE action = 'insert'\n"
+                                                        + " ORDER BY ord\n"
+                                                        + "ON CONFLICT (name)\n"
+                                                        + "DO NOTHING\n"
+                                                        + "RETURNING name, paths ->> ? AS local_path";
+    private static final String UPDATE_PATHS_FROM_MERGE_SQL = ""
+                                                              + "UPDATE media d\n"
+                                                              + "   SET paths = d.paths || s.paths\n"
+                                                              + "  FROM media_merge s\n"
+                                                              + " WHERE s.action IN ('merge', 'relocate')\n"
+                                                              + "   AND d.name = s.name\n"
+                                                              + "RETURNING d.name, s.action, s.paths";
+    private static final String UPDATE_MD5_FROM_MERGE_SQL = ""
+                                                            + "UPDATE media d\n"
+                                                            + "   SET hash_md5 = s.hash_md5\n"
+                                                            + "  FROM media_merge s\n"
+                                                            + " WHERE s.action = 'md5'\n"
+                                                            + "   AND d.name = s.name\n"
+                                                            + "RETURNING d.name, d.hash_md5";
+    //перцептивный хеш дописывается к уже известным файлам без изменения счетчиков
+    private static final String UPDATE_PERCEPTUAL_HASH_FROM_MERGE_SQL = ""
+                                                                        + "UPDATE media d\n"
+                                                                        + "   SET hash_perceptual = s.hash_perceptual\n"
+                                                                        + "  FROM media_merge s\n"
+                                                                        + " WHERE s.action IN ('merge', 'relocate', 'here')\n"
+                                                                        + "   AND s.hash_perceptual IS NOT NULL\n"
+                                                                        + "   AND d.hash_perceptual IS NULL\n"
+                                                                        + "   AND d.name = s.name";
+    private static final String SELECT_MERGE_ACTION_SQL = ""
+                                                          + "SELECT ord,\n"
+                                                          + "       name\n"
+                                                          + "  FROM media_merge\n"
+                                                          + " WHERE action = ?\n"
+                                                          + " ORDER BY ord";
+    private static final String DROP_MERGE_TABLE_SQL = "DROP TABLE IF EXISTS media_scan, media_merge";
+    private static final String ADD_QUICK_HASH_SQL = "ALTER TABLE media ADD COLUMN IF NOT EXISTS hash_quick varchar(64)";
+    private static final String ADD_PERCEPTUAL_HASH_SQL = "ALTER TABLE media ADD COLUMN IF NOT EXISTS hash_perceptual bigint";
+    private static final String CREATE_QUICK_HASH_INDEX_SQL = ""
+                                                              + "CREATE INDEX IF NOT EXISTS media_quick_hash_idx\n"
+                                                              + "    ON media(file_size, hash_quick)\n"
+                                                              + " WHERE hash_quick IS NOT NULL";
+    //локальные файлы без полного хеша, у которых размер и быстрый отпечаток совпали с другой записью
+    private static final String SELECT_QUICK_HASH_COLLISIONS_SQL = ""
+                                                                   + "SELECT m.id,\n"
+                                                                   + "       m.name,\n"
+                                                                   + "       m.paths ->> ? AS local_path\n"
+                                                                   + "  FROM media m\n"
+                                                                   + " WHERE m.hash_md5 IS NULL\n"
+                                                                   + "   AND m.hash_quick IS NOT NULL\n"
+                                                                   + "   AND m.paths ->> ? IS NOT NULL\n"
+                                                                   + "   AND EXISTS (SELECT 1\n"
+                                                                   + "                 FROM media o\n"
+                                                                   + "                WHERE o.file_size = m.file_size\n"
+                                                                   + "                  AND o.hash_quick = m.hash_quick\n"
+                                                                   + "                  AND o.id <> m.id)";
     private static final int LIMIT = 500;
     private static final int COMMIT_CHUNK = 10_000;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    //по одному таймеру на вид запроса; db.copy - кодирование и передача строк COPY, байты - символы строк
+    private static final Metrics.Timer COPY_TIMER = Metrics.timer("db.copy");
+    private static final Metrics.Timer INSERT_FROM_COPY_TIMER = Metrics.timer("db.insert_from_copy");
+    private static final Metrics.Timer INSERT_BATCH_TIMER = Metrics.timer("db.insert_batch");
+    private static final Metrics.Timer SELECT_TIMER = Metrics.timer("db.select");
+    private static final Metrics.Timer SELECT_BY_NAME_TIMER = Metrics.timer("db.select_by_name");
+    private static final Metrics.Timer INSERT_OR_SELECT_TIMER = Metrics.timer("db.insert_or_select");
+    private static final Metrics.Timer UPDATE_PATHS_TIMER = Metrics.timer("db.update_paths");
+    private static final Metrics.Timer UPDATE_HASH_TIMER = Metrics.timer("db.update_hash");
+    private static final Metrics.Timer UPDATE_HASH_BATCH_TIMER = Metrics.timer("db.update_hash_batch");
+    private static final Metrics.Timer UPDATE_PERCEPTUAL_HASH_TIMER = Metrics.timer("db.update_perceptual_hash");
+    private static final Metrics.Timer STAGING_TIMER = Metrics.timer("db.staging");
     private final Logger log;
 
     public PgHelper(Logger log) {
         this.log = log;
     }
 
-    public void fillEmptyDatabase(String jdbcPropertiesFilePath, List<Media> mediaList) throws IOException, SQLException {
-        log.info("Start fillEmptyDatabase");
-        DataSource dataSource = getDataSource(jdbcPropertiesFilePath);
+    //journal - журнал заполнения, сбрасывается на диск перед каждой фиксацией в БД;
+    //продолжение прерванного заполнения: БД уже не пуста, повторные записи пропускаются по конфликту name;
+    //false - БД не пуста, ничего не записано
+    public boolean fillEmptyDatabase(String jdbcPropertiesFilePath,
+                                     MediaSource mediaSource,
+                                     boolean useCopy,
+                                     @Nullable ProgressJournal journal) throws IOException, SQLException {
+        boolean resume = journal != null && journal.isResumed();
+        log.info("Start fillEmptyDatabase(useCopy={}, resume={})", useCopy, resume);
         boolean filled;
-        try (Connection connection = dataSource.getConnection()) {
+        try (HikariDataSource dataSource = getDataSource(jdbcPropertiesFilePath, 1);
+             Connection connection = dataSource.getConnection()) {
             connection.setAutoCommit(true);
-            try (PreparedStatement insertStatement = connection.prepareStatement(INSERT_SQL);
-                 PreparedStatement testStatement = connection.prepareStatement(TEST_SELECT)) {
-                try (ResultSet resultSet = testStatement.executeQuery()) {
-                    filled = !resultSet.next();
+            if (resume) {
+                filled = true;
+            } else {
+                try (PreparedStatement testStatement = connection.prepareStatement(TEST_SELECT)) {
+                    try (ResultSet resultSet = testStatement.executeQuery()) {
+                        filled = !resultSet.next();
+                    }
                 }
-                if (filled) {
-                    int count = 0;
-                    for (Media media : mediaList) {
-                        fillInsertStatement(media, insertStatement, media.getName());
-                        insertStatement.addBatch();
-                        ++count;
-                        if (count > 100) {
-                            insertStatement.executeBatch();
-                        }
+            }
+            if (filled) {
+                long start = System.nanoTime();
+                long count;
+                if (useCopy) {
+                    try (CopySink copySink = new CopySink(connection, log, journal)) {
+                        mediaSource.drainTo(copySink);
+                        copySink.flush();
+                        count = copySink.count;
+                    }
+                } else {
+                    try (InsertSink insertSink = new InsertSink(connection, journal)) {
+                        mediaSource.drainTo(insertSink);
+                        insertSink.flush();
+                        count = insertSink.count;
                     }
-                    insertStatement.executeBatch();
                 }
+                log.info("Inserted {} rows, {} rows/s", count, getRate(count, start));
             }
         }
 
@@ -123,20 +324,255 @@ public class PgHelper {
         } else {
             log.warn("Database not empty");
         }
+        return filled;
     }
 
-    public void mergeToDatabase(String jdbcPropertiesFilePath, List<Media> mediaList, String hostName, boolean detailLog) throws IOException, SQLException {
-        log.info("Start mergeToDatabase");
+    public void mergeToDatabase(String jdbcPropertiesFilePath,
+                                List<Media> mediaList,
+                                String hostName,
+                                boolean detailLog,
+                                MergeMode mergeMode,
+                                int connections) throws IOException, SQLException {
+        log.info("Start mergeToDatabase(mergeMode={}, connections={})", mergeMode, connections);
         if (mediaList.isEmpty()) {
             return;
         }
-        DataSource dataSource = getDataSource(jdbcPropertiesFilePath);
-        try (DbProcessor dbProcessor = new DbProcessor(dataSource, log, detailLog)) {
-            dbProcessor.process(mediaList, hostName);
+        int poolSize = mergeMode == MergeMode.PARTITIONED ? Math.max(1, connections) : 1;
+        try (HikariDataSource dataSource = getDataSource(jdbcPropertiesFilePath, poolSize)) {
+            if (mergeMode == MergeMode.PARTITIONED) {
+                mergePartitioned(dataSource, mediaList, hostName, detailLog, poolSize);
+            } else {
+                try (DbProcessor dbProcessor = new DbProcessor(dataSource, log, detailLog)) {
+                    if (mergeMode == MergeMode.STAGING) {
+                        dbProcessor.processStaging(mediaList, hostName);
+                    } else {
+                        dbProcessor.process(mediaList.iterator(), hostName);
+                    }
+                }
+            }
+        }
+        log.info("Finish mergeToDatabase");
+    }
+
+    //построчное слияние без списка в памяти, sortedMedia должен быть отсортирован по Media::compareTo
+    public void mergeToDatabase(String jdbcPropertiesFilePath,
+                                Iterator<Media> sortedMedia,
+                                String hostName,
+                                boolean detailLog) throws IOException, SQLException {
+        log.info("Start mergeToDatabase(stream)");
+        try (HikariDataSource dataSource = getDataSource(jdbcPropertiesFilePath, 1);
+             DbProcessor dbProcessor = new DbProcessor(dataSource, log, detailLog)) {
+            dbProcessor.process(sortedMedia, hostName);
         }
         log.info("Finish mergeToDatabase");
     }
 
+    //для --watch: пачки сливаются построчно через одно соединение, пока наблюдение не закончится
+    public BatchMerger openBatchMerger(String jdbcPropertiesFilePath, String hostName, boolean detailLog) throws IOException, SQLException {
+        return new BatchMerger(getDataSource(jdbcPropertiesFilePath, 1), hostName, detailLog);
+    }
+
+    //каждый проход - отдельный запрос курсором
+    public MediaSource readCatalog(String jdbcPropertiesFilePath) {
+        return (MediaSink sink) -> {
+            try (HikariDataSource dataSource = getDataSource(jdbcPropertiesFilePath, 1);
+                 Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try (PreparedStatement statement = connection.prepareStatement(SELECT_CATALOG_SQL)) {
+                    statement.setFetchSize(LIMIT);
+                    long start = System.nanoTime();
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        SELECT_TIMER.record(start);
+                        while (resultSet.next()) {
+                            Map<String, String> paths = OBJECT_MAPPER.readValue(resultSet.getString("paths"), STRING_MAP);
+                            Media media = new Media(resultSet.getString("name"),
+                                                    resultSet.getTimestamp("create_date"),
+                                                    resultSet.getTimestamp("last_modify"),
+                                                    paths,
+                                                    resultSet.getString("hash_md5"),
+                                                    resultSet.getLong("file_size"),
+                                                    resultSet.getString("type"),
+                                                    null,
+                                                    null);
+                            media.setQuickHash(resultSet.getString("hash_quick"));
+                            media.setPerceptualHash(getNullableLong(resultSet, "hash_perceptual"));
+                            sink.accept(media);
+                        }
+                    }
+                }
+                connection.commit();
+            }
+        };
+    }
+
+    //при calculate-hash=quick полный хеш считается только для локальных файлов, чей отпечаток совпал с другой записью
+    public void resolveQuickHashCollisions(String jdbcPropertiesFilePath, String hostName, HashAlgorithm hashAlgorithm) throws IOException, SQLException {
+        log.info("Start resolveQuickHashCollisions");
+        int hashed = 0;
+        try (HikariDataSource dataSource = getDataSource(jdbcPropertiesFilePath, 1);
+             Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement selectStatement = connection.prepareStatement(SELECT_QUICK_HASH_COLLISIONS_SQL);
+                 PreparedStatement updateStatement = connection.prepareStatement(UPDATE_MD5_SQL)) {
+                selectStatement.setFetchSize(LIMIT);
+                selectStatement.setString(1, hostName);
+                selectStatement.setString(2, hostName);
+                int batch = 0;
+                try (ResultSet resultSet = selectStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        String name = resultSet.getString("name");
+                        Path path = Paths.get(resultSet.getString("local_path"));
+                        if (!Files.isRegularFile(path)) {
+                            log.warn("File '{}' not found: {}", name, path);
+                            continue;
+                        }
+                        String md5Hash = HashUtils.getHash(path, hashAlgorithm);
+                        updateStatement.setString(1, md5Hash);
+                        updateStatement.setLong(2, resultSet.getLong("id"));
+                        updateStatement.addBatch();
+                        if (++batch >= LIMIT) {
+                            long start = System.nanoTime();
+                            updateStatement.executeBatch();
+                            UPDATE_HASH_BATCH_TIMER.record(start);
+                            batch = 0;
+                        }
+                        ++hashed;
+                        log.info("File '{}' merged with MD5: {}", name, md5Hash);
+                    }
+                }
+                if (batch > 0) {
+                    long start = System.nanoTime();
+                    updateStatement.executeBatch();
+                    UPDATE_HASH_BATCH_TIMER.record(start);
+                }
+            }
+            connection.commit();
+        }
+        log.info("Finish resolveQuickHashCollisions: {} files hashed", hashed);
+    }
+
+    /**
+     * Отсортированный список режется на непрерывные диапазоны name_to_sort, каждый диапазон сливается
+     * своим DbProcessor в отдельном соединении. Граница не разделяет файлы с одинаковым name_to_sort.
+     * Границы берутся в порядке String, поэтому в SELECT_RANGE_SQL сравнение и сортировка с COLLATE "C".
+     */
+    private void mergePartitioned(DataSource dataSource,
+                                  List<Media> mediaList,
+                                  String hostName,
+                                  boolean detailLog,
+                                  int partitions) throws IOException, SQLException {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 1; i < partitions; i++) {
+            int start = Math.max(mediaList.size() * i / partitions, starts.get(starts.size() - 1) + 1);
+            while (start < mediaList.size()
+                   && mediaList.get(start).getNameToSort().equals(mediaList.get(start - 1).getNameToSort())) {
+                ++start;
+            }
+            if (start < mediaList.size()) {
+                starts.add(start);
+            }
+        }
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(starts.size(), (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "merge-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<DbProcessor> processors = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < starts.size(); i++) {
+                int start = starts.get(i);
+                int end = i + 1 < starts.size() ? starts.get(i + 1) : mediaList.size();
+                List<Media> partition = mediaList.subList(start, end);
+                //у первого диапазона нет нижней границы, у последнего - верхней
+                String from = i == 0 ? "" : partition.get(0).getNameToSort();
+                String to = end < mediaList.size() ? mediaList.get(end).getNameToSort() : null;
+                DbProcessor dbProcessor = new DbProcessor(dataSource, log, detailLog);
+                processors.add(dbProcessor);
+                futures.add(executor.submit(() -> {
+                    try (DbProcessor processor = dbProcessor) {
+                        processor.process(partition, hostName, from, to);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Merge interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        int inserted = 0;
+        int updated = 0;
+        int existsHere = 0;
+        int existsElsewhere = 0;
+        for (DbProcessor dbProcessor : processors) {
+            inserted += dbProcessor.insertedCount.get();
+            updated += dbProcessor.updatedCount.get();
+            existsHere += dbProcessor.existsHereCount.get();
+            existsElsewhere += dbProcessor.existsElsewhereCount.get();
+        }
+        log.info("Finish partitioned merge ({} partitions). Inserted rows: {}, updated rows: {}, exists here: {}, exists elsewhere: {}",
+                 processors.size(), inserted, updated, existsHere, existsElsewhere);
+    }
+
+    /**
+     * Каждая запись пачки вставляется или сливается с записью БД того же имени так же, как при построчном слиянии
+     * (mergeSameFiles: новый путь, перемещение на этом устройстве, недостающий хеш), пачка - одна транзакция.
+     */
+    public class BatchMerger implements AutoCloseable {
+        private final HikariDataSource dataSource;
+        private final String hostName;
+        private final boolean detailLog;
+        private DbProcessor dbProcessor;
+
+        private BatchMerger(HikariDataSource dataSource, String hostName, boolean detailLog) {
+            this.dataSource = dataSource;
+            this.hostName = hostName;
+            this.detailLog = detailLog;
+            this.dbProcessor = new DbProcessor(dataSource, log, detailLog);
+        }
+
+        public void merge(List<Media> mediaList) throws SQLException, JsonProcessingException {
+            try {
+                dbProcessor.processBatch(mediaList, hostName);
+            } catch (SQLException e) {
+                //соединение могло оборваться, следующая пачка откроет новое
+                try {
+                    dbProcessor.close();
+                } catch (RuntimeException closeException) {
+                    e.addSuppressed(closeException);
+                }
+                dbProcessor = new DbProcessor(dataSource, log, detailLog);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                dbProcessor.close();
+            } finally {
+                dataSource.close();
+            }
+        }
+    }
+
     @Nullable
     private static Media nextMedia(Iterator<Media> mediaIterator) {
         Media media;
@@ -153,14 +589,25 @@ public class PgHelper {
         public final String name;
         public final long fileSize;
         public final String md5Hash;
+        public final String quickHash;
+        public final Long perceptualHash;
         public final Timestamp lastModify;
         public final Map<String, String> paths;
 
-        public DbMedia(long id, String name, long fileSize, String md5Hash, Timestamp lastModify, Map<String, String> paths) {
+        public DbMedia(long id,
+                       String name,
+                       long fileSize,
+                       String md5Hash,
+                       String quickHash,
+                       Long perceptualHash,
+                       Timestamp lastModify,
+                       Map<String, String> paths) {
             this.id = id;
             this.name = name;
             this.fileSize = fileSize;
             this.md5Hash = md5Hash;
+            this.quickHash = quickHash;
+            this.perceptualHash = perceptualHash;
             this.lastModify = lastModify;
             this.paths = paths;
         }
@@ -170,10 +617,12 @@ public class PgHelper {
             String name = resultSet.getString("name");
             long fileSize = resultSet.getLong("file_size");
             String md5Hash = resultSet.getString("hash_md5");
+            String quickHash = resultSet.getString("hash_quick");
+            Long perceptualHash = getNullableLong(resultSet, "hash_perceptual");
             String pathsAsString = resultSet.getString("paths");
             Timestamp lastModify = resultSet.getTimestamp("last_modify");
             Map<String, String> map = OBJECT_MAPPER.readValue(pathsAsString, Map.class);
-            return new DbMedia(id, name, fileSize, md5Hash, lastModify, map);
+            return new DbMedia(id, name, fileSize, md5Hash, quickHash, perceptualHash, lastModify, map);
         }
 
         @Override
@@ -184,10 +633,192 @@ public class PgHelper {
                    ", fileSize=" + fileSize +
                    ", lastModify=" + lastModify +
                    ", md5Hash='" + md5Hash + '\'' +
+                   ", quickHash='" + quickHash + '\'' +
+                   ", perceptualHash=" + perceptualHash +
                    '}';
         }
     }
 
+    private static class InsertSink implements MediaSink {
+        private final PreparedStatement insertStatement;
+        @Nullable
+        private final ProgressJournal journal;
+        private int batch;
+        private long count;
+
+        public InsertSink(Connection connection, @Nullable ProgressJournal journal) throws SQLException {
+            this.insertStatement = connection.prepareStatement(INSERT_SQL);
+            this.journal = journal;
+        }
+
+        @Override
+        public void accept(Media media) throws IOException, SQLException {
+            fillInsertStatement(media, insertStatement, media.getName());
+            insertStatement.addBatch();
+            ++batch;
+            if (batch >= LIMIT) {
+                executeBatch();
+            }
+        }
+
+        public void flush() throws IOException, SQLException {
+            if (batch > 0) {
+                executeBatch();
+            }
+        }
+
+        private void executeBatch() throws IOException, SQLException {
+            if (journal != null) {
+                journal.force();
+            }
+            long start = System.nanoTime();
+            int[] updatedRows = insertStatement.executeBatch();
+            INSERT_BATCH_TIMER.record(start);
+            for (int updated : updatedRows) {
+                if (updated > 0) {
+                    count += updated;
+                }
+            }
+            batch = 0;
+        }
+
+        @Override
+        public void close() throws IOException, SQLException {
+            try {
+                flush();
+            } finally {
+                insertStatement.close();
+            }
+        }
+    }
+
+    /**
+     * Строки передаются через COPY во временную таблицу и переносятся в media каждые COMMIT_CHUNK записей,
+     * конфликты по name разрешаются так же, как при построчной вставке.
+     */
+    private static class CopySink implements MediaSink {
+        private final Connection connection;
+        private final Logger log;
+        private final long start = System.nanoTime();
+        private final StringBuilder row = new StringBuilder();
+        @Nullable
+        private PGCopyOutputStream copyStream;
+        @Nullable
+        private Writer writer;
+        @Nullable
+        private final ProgressJournal journal;
+        private long ord;
+        private int chunk;
+        private long count;
+
+        public CopySink(Connection connection, Logger log, @Nullable ProgressJournal journal) throws SQLException {
+            this.connection = connection;
+            this.log = log;
+            this.journal = journal;
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(DROP_COPY_TABLE_SQL);
+                statement.execute(CREATE_COPY_TABLE_SQL);
+            }
+        }
+
+        @Override
+        public void accept(Media media) throws IOException, SQLException {
+            if (writer == null) {
+                copyStream = new PGCopyOutputStream(connection.unwrap(PGConnection.class), COPY_SQL, COPY_BUFFER_SIZE);
+                writer = new BufferedWriter(new OutputStreamWriter(copyStream, StandardCharsets.UTF_8), COPY_BUFFER_SIZE);
+            }
+            long start = System.nanoTime();
+            row.setLength(0);
+            appendCopyRow(row, ++ord, media).append('\n');
+            writer.append(row);
+            COPY_TIMER.record(start, row.length());
+            ++chunk;
+            if (chunk >= COMMIT_CHUNK) {
+                flush();
+            }
+        }
+
+        public void flush() throws IOException, SQLException {
+            if (writer == null) {
+                return;
+            }
+            writer.flush();
+            copyStream.endCopy();
+            writer = null;
+            copyStream = null;
+            //строки становятся видны в media этим INSERT, журнал к этому моменту уже на диске
+            if (journal != null) {
+                journal.force();
+            }
+            try (Statement statement = connection.createStatement()) {
+                long start = System.nanoTime();
+                count += statement.executeUpdate(INSERT_FROM_COPY_SQL);
+                INSERT_FROM_COPY_TIMER.record(start);
+                statement.execute(TRUNCATE_COPY_TABLE_SQL);
+            }
+            chunk = 0;
+            log.info("Copied {} files, inserted {} rows, {} rows/s", ord, count, getRate(count, start));
+        }
+
+        @Override
+        public void close() throws IOException, SQLException {
+            try {
+                flush();
+            } finally {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(DROP_COPY_TABLE_SQL);
+                }
+            }
+        }
+    }
+
+    static StringBuilder appendCopyRow(StringBuilder row, long ord, Media media) throws JsonProcessingException {
+        row.append(ord).append('\t');
+        appendCopyValue(row, media.getName()).append('\t');
+        appendCopyValue(row, media.getCreatedAt()).append('\t');
+        appendCopyValue(row, OBJECT_MAPPER.writeValueAsString(media.getMetadata())).append('\t');
+        appendCopyValue(row, OBJECT_MAPPER.writeValueAsString(media.getPaths())).append('\t');
+        appendCopyValue(row, media.getType()).append('\t');
+        row.append(media.getSize()).append('\t');
+        appendCopyValue(row, media.getMd5Hash()).append('\t');
+        appendCopyValue(row, media.getLastModify()).append('\t');
+        appendCopyValue(row, media.getQuickHash()).append('\t');
+        return appendCopyValue(row, media.getPerceptualHash());
+    }
+
+    //текстовый формат COPY: \N для null, экранируются обратный слеш, табуляция и переводы строк
+    private static StringBuilder appendCopyValue(StringBuilder sb, @Nullable Object value) {
+        if (value == null) {
+            return sb.append("\\N");
+        }
+        String s = value.toString();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    private static long getRate(long count, long start) {
+        long nanos = System.nanoTime() - start;
+        return nanos > 0 ? count * 1_000_000_000L / nanos : count;
+    }
+
     private static void fillInsertStatement(Media media,
                                             PreparedStatement insertStatement,
                                             String mediaName) throws SQLException, JsonProcessingException {
@@ -204,6 +835,24 @@ public class PgHelper {
             insertStatement.setNull(7, Types.VARCHAR);
         }
         insertStatement.setTimestamp(8, media.getLastModify());
+        String quickHash = media.getQuickHash();
+        if (quickHash != null) {
+            insertStatement.setString(9, quickHash);
+        } else {
+            insertStatement.setNull(9, Types.VARCHAR);
+        }
+        Long perceptualHash = media.getPerceptualHash();
+        if (perceptualHash != null) {
+            insertStatement.setLong(10, perceptualHash);
+        } else {
+            insertStatement.setNull(10, Types.BIGINT);
+        }
+    }
+
+    @Nullable
+    private static Long getNullableLong(ResultSet resultSet, String column) throws SQLException {
+        long value = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : value;
     }
 
     private static String toLogPath(Map<String, String> paths) {
@@ -214,7 +863,7 @@ public class PgHelper {
         return stringBuilder.toString();
     }
 
-    private static DataSource getDataSource(String jdbcPropertiesFilePath) throws IOException {
+    private static HikariDataSource getDataSource(String jdbcPropertiesFilePath, int poolSize) throws IOException, SQLException {
         Properties properties = new Properties();
         try (InputStream inputStream = Files.newInputStream(Paths.get(jdbcPropertiesFilePath))) {
             properties.load(inputStream);
@@ -223,7 +872,28 @@ public class PgHelper {
         dataSource.setUrl(properties.getProperty("pg.url"));
         dataSource.setUser(properties.getProperty("pg.user"));
         dataSource.setPassword(properties.getProperty("pg.password"));
-        return dataSource;
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("media");
+        config.setDataSource(dataSource);
+        config.setMaximumPoolSize(poolSize);
+        HikariDataSource hikariDataSource = new HikariDataSource(config);
+        try {
+            upgradeSchema(hikariDataSource);
+        } catch (SQLException | RuntimeException e) {
+            hikariDataSource.close();
+            throw e;
+        }
+        return hikariDataSource;
+    }
+
+    //колонки, появившиеся после создания таблицы
+    private static void upgradeSchema(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(ADD_QUICK_HASH_SQL);
+            statement.execute(CREATE_QUICK_HASH_INDEX_SQL);
+            statement.execute(ADD_PERCEPTUAL_HASH_SQL);
+        }
     }
 
     private static class DbProcessor implements AutoCloseable {
@@ -242,6 +912,7 @@ public class PgHelper {
         private PreparedStatement insertOrSelectStmt;
         private PreparedStatement updateMd5Statement;
         private PreparedStatement updatePathsStmt;
+        private PreparedStatement updatePerceptualHashStmt;
         private int commitThreshold = PgHelper.COMMIT_CHUNK;
 
         public DbProcessor(DataSource dataSource, Logger log, boolean detailLog) {
@@ -256,6 +927,9 @@ public class PgHelper {
 
         @Override
         public void close() {
+            if (connection == null) {
+                return;
+            }
             try {
                 connection.close();
             } catch (SQLException e) {
@@ -263,7 +937,7 @@ public class PgHelper {
             }
         }
 
-        public void process(List<Media> mediaList, String hostName) throws SQLException, JsonProcessingException {
+        private void open() throws SQLException {
             connection = dataSource.getConnection();
             connection.setAutoCommit(false);
             connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
@@ -272,12 +946,32 @@ public class PgHelper {
             insertOrSelectStmt = connection.prepareStatement(INSERT_OR_SELECT_SQL);
             updateMd5Statement = connection.prepareStatement(UPDATE_MD5_SQL);
             updatePathsStmt = connection.prepareStatement(UPDATE_PATHS_SQL);
+            updatePerceptualHashStmt = connection.prepareStatement(UPDATE_PERCEPTUAL_HASH_SQL);
+        }
 
+        //mediaIterator должен быть отсортирован по Media::compareTo
+        public void process(Iterator<Media> mediaIterator, String hostName) throws SQLException, JsonProcessingException {
+            open();
             PreparedStatement selectStatement = connection.prepareStatement(SELECT_SQL);
+            process(mediaIterator, hostName, selectStatement);
+        }
+
+        //только записи БД с name_to_sort в [from, to), to == null - без верхней границы
+        public void process(List<Media> mediaList, String hostName, String from, @Nullable String to) throws SQLException, JsonProcessingException {
+            open();
+            PreparedStatement selectStatement = connection.prepareStatement(SELECT_RANGE_SQL);
+            selectStatement.setString(1, from);
+            selectStatement.setString(2, to);
+            selectStatement.setString(3, to);
+            process(mediaList.iterator(), hostName, selectStatement);
+        }
+
+        private void process(Iterator<Media> mediaIterator, String hostName, PreparedStatement selectStatement) throws SQLException, JsonProcessingException {
             selectStatement.setFetchSize(LIMIT);
-            Iterator<Media> mediaIterator = mediaList.iterator();
             Media media = nextMedia(mediaIterator);
+            long start = System.nanoTime();
             try (ResultSet resultSet = selectStatement.executeQuery()) {
+                SELECT_TIMER.record(start);
                 DbMedia dbMedia = nextFromDb(resultSet);
                 while (dbMedia != null && media != null) {
                     int compared = media.getName().compareTo(dbMedia.name);
@@ -309,12 +1003,7 @@ public class PgHelper {
                 }
                 if (dbMedia == null && media != null) {
                     //нет больше записей в БД
-                    fillInsertStatement(media, insertStmt, media.getName());
-                    insertStmt.execute();
-                    insertedCount.incrementAndGet();
-                    this.log.info("File '{}' inserted", getLocalPath(media));
-
-                    int count = insertRestMedia(mediaIterator);
+                    int count = insertRestMedia(media, mediaIterator, hostName);
                     if (count > 0) {
                         insertedCount.addAndGet(count);
                         this.log.info("Inserted '{}' new files", count);
@@ -326,6 +1015,140 @@ public class PgHelper {
                 }
             }
             connection.commit();
+            logFinish();
+        }
+
+        public void processStaging(List<Media> mediaList, String hostName) throws SQLException, IOException {
+            open();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(DROP_MERGE_TABLE_SQL);
+                statement.execute(CREATE_SCAN_TABLE_SQL);
+            }
+            copyToScanTable(mediaList);
+            //запросы слияния через временную таблицу - одна запись таймера на запуск
+            long stagingStart = System.nanoTime();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ANALYZE media_scan");
+                statement.execute(CREATE_MERGE_TABLE_SQL);
+            }
+            //до вставки новых файлов, иначе они не отличаются от файлов с других устройств
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_ELSEWHERE_SQL)) {
+                statement.setFetchSize(LIMIT);
+                statement.setString(1, hostName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        existsElsewhereCount.incrementAndGet();
+                        if (detailLog) {
+                            Map<String, String> paths = OBJECT_MAPPER.readValue(resultSet.getString("paths"), STRING_MAP);
+                            log.warn("File '{}' from another device(s): {}", resultSet.getString("name"), paths.keySet());
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_FROM_MERGE_SQL)) {
+                statement.setString(1, hostName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        insertedCount.incrementAndGet();
+                        String localPath = resultSet.getString("local_path");
+                        this.log.info("File '{}' inserted", resultSet.getString("name") + " (" + (localPath != null ? localPath : "UNKNOWN") + ")");
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_PATHS_FROM_MERGE_SQL);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    updatedCount.incrementAndGet();
+                    Map<String, String> paths = OBJECT_MAPPER.readValue(resultSet.getString("paths"), STRING_MAP);
+                    if ("relocate".equals(resultSet.getString("action"))) {
+                        this.log.info("File '{}' relocated to new path: {}", resultSet.getString("name"), paths.get(hostName));
+                    } else {
+                        this.log.info("File '{}' merged with other path: {}", resultSet.getString("name"), toLogPath(paths));
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_MD5_FROM_MERGE_SQL);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    updatedCount.incrementAndGet();
+                    this.log.info("File '{}' merged with MD5: {}", resultSet.getString("name"), resultSet.getString("hash_md5"));
+                }
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate(UPDATE_PERCEPTUAL_HASH_FROM_MERGE_SQL);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_MERGE_ACTION_SQL)) {
+                statement.setFetchSize(LIMIT);
+                statement.setString(1, "here");
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        existsHereCount.incrementAndGet();
+                        if (detailLog) {
+                            this.log.info("File '{}' already exists", resultSet.getString("name"));
+                        }
+                    }
+                }
+            }
+            //разные файлы с одним именем и повторы внутри сканирования - построчно, как раньше
+            List<Media> rowByRow = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_MERGE_ACTION_SQL)) {
+                statement.setString(1, "row");
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        rowByRow.add(mediaList.get((int) resultSet.getLong("ord")));
+                    }
+                }
+            }
+            STAGING_TIMER.record(stagingStart);
+            for (Media media : rowByRow) {
+                mergeRow(media, hostName);
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(DROP_MERGE_TABLE_SQL);
+            }
+            connection.commit();
+            logFinish();
+        }
+
+        //небольшая пачка без чтения всей таблицы, соединение остается открытым для следующих пачек
+        public void processBatch(List<Media> mediaList, String hostName) throws SQLException, JsonProcessingException {
+            if (connection == null) {
+                open();
+            }
+            for (Media media : mediaList) {
+                mergeRow(media, hostName);
+            }
+            connection.commit();
+            logFinish();
+        }
+
+        private void mergeRow(Media media, String hostName) throws SQLException, JsonProcessingException {
+            DbMedia existed = tryInsert(media, media.getName());
+            if (existed == null) {
+                this.log.info("File '{}' inserted", getLocalPath(media));
+                insertedCount.incrementAndGet();
+            } else {
+                mergeSameFiles(media, existed, hostName);
+            }
+        }
+
+        private void copyToScanTable(List<Media> mediaList) throws SQLException, IOException {
+            StringBuilder row = new StringBuilder();
+            PGCopyOutputStream copyStream = new PGCopyOutputStream(connection.unwrap(PGConnection.class), COPY_SCAN_SQL, COPY_BUFFER_SIZE);
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(copyStream, StandardCharsets.UTF_8), COPY_BUFFER_SIZE)) {
+                for (int i = 0; i < mediaList.size(); i++) {
+                    long start = System.nanoTime();
+                    Media media = mediaList.get(i);
+                    row.setLength(0);
+                    appendCopyRow(row, i, media).append('\t').append(media.getLocalPath() != null ? 't' : 'f').append('\n');
+                    writer.append(row);
+                    COPY_TIMER.record(start, row.length());
+                }
+            }
+            log.info("Copied {} files to media_scan", mediaList.size());
+        }
+
+        private void logFinish() {
             this.log.info("Finish process. Inserted rows: {}, updated rows: {}, exists here: {}, exists elsewhere: {}",
                           insertedCount, updatedCount, existsHereCount, existsElsewhereCount);
         }
@@ -334,7 +1157,9 @@ public class PgHelper {
         private DbMedia tryInsert(Media media, String mediaName) throws SQLException, JsonProcessingException {
             fillInsertOrSelectStatement(media, mediaName);
             DbMedia existed = null;
+            long start = System.nanoTime();
             try (ResultSet resultSetLocal = insertOrSelectStmt.executeQuery()) {
+                INSERT_OR_SELECT_TIMER.record(start);
                 if (resultSetLocal.next()) {
                     boolean inserted = resultSetLocal.getBoolean("new_file");
                     if (!inserted) {
@@ -357,8 +1182,16 @@ public class PgHelper {
         private void mergeSameFiles(Media media, DbMedia dbMedia, String hostName) throws SQLException, JsonProcessingException {
             //Записи одинаковые. Проверяем fileSize и md5
             if (media.getSize() == dbMedia.fileSize) {
-                if (media.getLastModify().equals(dbMedia.lastModify) || Objects.equals(media.getMd5Hash(), dbMedia.md5Hash)) {
+                if (media.getLastModify().equals(dbMedia.lastModify) || isSameContent(media, dbMedia)) {
                     //записи абсолютно одинаковые, допишем путь, если это другое устройство
+                    if (dbMedia.perceptualHash == null && media.getPerceptualHash() != null) {
+                        //перцептивный хеш файлов, отсканированных до его появления, счетчики не меняет
+                        updatePerceptualHashStmt.setLong(1, media.getPerceptualHash());
+                        updatePerceptualHashStmt.setLong(2, dbMedia.id);
+                        long start = System.nanoTime();
+                        updatePerceptualHashStmt.executeUpdate();
+                        UPDATE_PERCEPTUAL_HASH_TIMER.record(start);
+                    }
                     Map<String, String> paths = media.getPaths();
                     if (dbMedia.paths.keySet().containsAll(paths.keySet())) {
                         Path localPath = media.getLocalPath();
@@ -375,7 +1208,9 @@ public class PgHelper {
                                 dbMedia.paths.putAll(paths);
                                 updatePathsStmt.setString(1, OBJECT_MAPPER.writeValueAsString(dbMedia.paths));
                                 updatePathsStmt.setLong(2, dbMedia.id);
+                                long start = System.nanoTime();
                                 updatePathsStmt.executeUpdate();
+                                UPDATE_PATHS_TIMER.record(start);
                                 updatedCount.incrementAndGet();
                                 this.log.info("File '{}' relocated to new path: {}", dbMedia.name, absolutePath);
                             }
@@ -389,15 +1224,19 @@ public class PgHelper {
                         dbMedia.paths.putAll(paths);
                         updatePathsStmt.setString(1, OBJECT_MAPPER.writeValueAsString(dbMedia.paths));
                         updatePathsStmt.setLong(2, dbMedia.id);
+                        long start = System.nanoTime();
                         updatePathsStmt.executeUpdate();
+                        UPDATE_PATHS_TIMER.record(start);
                         updatedCount.incrementAndGet();
                         this.log.info("File '{}' merged with other path: {}", dbMedia.name, toLogPath(paths));
                     }
-                } else if (dbMedia.md5Hash == null) {
+                } else if (dbMedia.md5Hash == null && media.getMd5Hash() != null) {
                     //допишем в БД md5
                     updateMd5Statement.setString(1, media.getMd5Hash());
                     updateMd5Statement.setLong(2, dbMedia.id);
+                    long start = System.nanoTime();
                     updateMd5Statement.executeUpdate();
+                    UPDATE_HASH_TIMER.record(start);
                     updatedCount.incrementAndGet();
                     this.log.info("File '{}' merged with MD5: {}", dbMedia.name, media.getMd5Hash());
                 } else {
@@ -410,14 +1249,16 @@ public class PgHelper {
                 int index = 1;
                 do {
                     selectByNameStmt.setString(1, newName);
+                    long start = System.nanoTime();
                     try (ResultSet resultSet = selectByNameStmt.executeQuery()) {
                         dbMediaRenamed = nextFromDb(resultSet);
                     }
+                    SELECT_BY_NAME_TIMER.record(start);
                     if (dbMediaRenamed != null) {
                         //Сравниваем файлы. Если он один и тот же - пропускаем
                         boolean diff = false;
                         if (media.getSize() == dbMediaRenamed.fileSize) {
-                            if (!media.getLastModify().equals(dbMediaRenamed.lastModify) && !Objects.equals(media.getMd5Hash(), dbMediaRenamed.md5Hash)) {
+                            if (!media.getLastModify().equals(dbMediaRenamed.lastModify) && !isSameContent(media, dbMediaRenamed)) {
                                 diff = true;
                             }
                         } else {
@@ -449,25 +1290,73 @@ public class PgHelper {
         }
 
 
-        private int insertRestMedia(Iterator<Media> mediaIterator) throws SQLException, JsonProcessingException {
+        //время изменения разное. Разные быстрые отпечатки - разные файлы; если отпечатки совпали, а в БД есть полный хеш,
+        //полный хеш локального файла считается сейчас, а не при сканировании.
+        //Хеши разных алгоритмов не сравниваются: для локального файла считается хеш алгоритмом из БД
+        private static boolean isSameContent(Media media, DbMedia dbMedia) {
+            String quickHash = media.getQuickHash();
+            if (quickHash != null && dbMedia.quickHash != null && !quickHash.equals(dbMedia.quickHash)) {
+                return false;
+            }
+            String md5Hash = media.getMd5Hash();
+            HashAlgorithm dbAlgorithm = HashAlgorithm.ofHash(dbMedia.md5Hash);
+            if (dbAlgorithm != null && media.getLocalPath() != null
+                && (md5Hash == null ? quickHash != null : HashAlgorithm.ofHash(md5Hash) != dbAlgorithm)) {
+                if (md5Hash == null) {
+                    media.calculateHash(dbAlgorithm);
+                    md5Hash = media.getMd5Hash();
+                } else {
+                    md5Hash = HashUtils.getHash(media.getLocalPath(), dbAlgorithm);
+                }
+            }
+            return Objects.equals(md5Hash, dbMedia.md5Hash);
+        }
+
+        private int insertRestMedia(Media first, Iterator<Media> mediaIterator, String hostName) throws SQLException, JsonProcessingException {
             int total = 0;
-            int batch = 0;
-            while (mediaIterator.hasNext()) {
-                Media media = mediaIterator.next();
+            List<Media> batch = new ArrayList<>();
+            Media media = first;
+            while (media != null) {
                 fillInsertStatement(media, insertStmt, media.getName());
-                log.info("File '{}' inserted", media.getName());
                 insertStmt.addBatch();
-                ++total;
-                ++batch;
-                if (batch > LIMIT) {
-                    insertStmt.executeBatch();
-                    batch = 0;
+                batch.add(media);
+                if (batch.size() > LIMIT) {
+                    total += executeInsertBatch(batch, hostName);
                 }
+                media = nextMedia(mediaIterator);
             }
-            insertStmt.executeBatch();
+            total += executeInsertBatch(batch, hostName);
             return total;
         }
 
+        //имя может уже быть в БД: повтор в списке или граница диапазона при разбиении, такие файлы сливаются построчно
+        private int executeInsertBatch(List<Media> batch, String hostName) throws SQLException, JsonProcessingException {
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            int[] updated = insertStmt.executeBatch();
+            INSERT_BATCH_TIMER.record(start);
+            int inserted = 0;
+            for (int i = 0; i < updated.length; i++) {
+                Media media = batch.get(i);
+                if (updated[i] > 0) {
+                    ++inserted;
+                    log.info("File '{}' inserted", getLocalPath(media));
+                } else {
+                    DbMedia existed = tryInsert(media, media.getName());
+                    if (existed == null) {
+                        ++inserted;
+                        log.info("File '{}' inserted", getLocalPath(media));
+                    } else {
+                        mergeSameFiles(media, existed, hostName);
+                    }
+                }
+            }
+            batch.clear();
+            return inserted;
+        }
+
         private void fillInsertOrSelectStatement(Media media,
                                                  String mediaName) throws SQLException, JsonProcessingException {
             insertOrSelectStmt.setString(1, mediaName);
@@ -484,6 +1373,18 @@ public class PgHelper {
                 insertOrSelectStmt.setNull(8, Types.VARCHAR);
             }
             insertOrSelectStmt.setTimestamp(9, media.getLastModify());
+            String quickHash = media.getQuickHash();
+            if (quickHash != null) {
+                insertOrSelectStmt.setString(10, quickHash);
+            } else {
+                insertOrSelectStmt.setNull(10, Types.VARCHAR);
+            }
+            Long perceptualHash = media.getPerceptualHash();
+            if (perceptualHash != null) {
+                insertOrSelectStmt.setLong(11, perceptualHash);
+            } else {
+                insertOrSelectStmt.setNull(11, Types.BIGINT);
+            }
         }
 
         private static String getLocalPath(Media media) {
@@ -0,0 +1,198 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+/**
+ * Журнал первичного заполнения: по строке JSON на каждый обработанный файл, дописывается до передачи записи в БД
+ * или выгрузку. Первая строка - параметры сканирования; журнал с другими параметрами начинается заново.
+ * Обрезанная при сбое последняя строка отбрасывается. При продолжении файл с той же длиной и временем изменения
+ * получает метаданные и хеши из журнала и проходит конвейер без обработки.
+ * На диск журнал сбрасывается (force) не на каждой строке, а перед каждой фиксацией пачки в БД: после сбоя питания
+ * теряются только строки еще не зафиксированных записей, которые при продолжении просто обрабатываются заново.
+ */
+public class ProgressJournal implements MediaSink {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectWriter MEDIA_WRITER = OBJECT_MAPPER.writer();
+    private static final String SETTINGS = "settings";
+
+    private final Path file;
+    private final FileChannel channel;
+    private final OutputStream output;
+    //путь -> запись; восстановленная запись удаляется, чтобы журнал не держал в памяти весь каталог
+    private final Map<String, Media> completed;
+    //восстановленные записи, еще не дошедшие до приемника: их повторно не пишем
+    private final Set<Media> restored = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private final int resumed;
+    private long count;
+
+    private ProgressJournal(Path file, FileChannel channel, Map<String, Media> completed) {
+        this.file = file;
+        this.channel = channel;
+        this.output = Channels.newOutputStream(channel);
+        this.completed = completed;
+        this.resumed = completed.size();
+    }
+
+    public static ProgressJournal open(Path file, String settings) throws IOException {
+        Map<String, Media> completed = new HashMap<>();
+        long validLength = 0;
+        if (Files.exists(file)) {
+            validLength = read(file, settings, completed);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(validLength);
+            channel.position(validLength);
+            ProgressJournal journal = new ProgressJournal(file, channel, completed);
+            if (validLength == 0) {
+                ObjectNode header = OBJECT_MAPPER.createObjectNode();
+                header.put(SETTINGS, settings);
+                journal.writeLine(OBJECT_MAPPER.writeValueAsBytes(header));
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //длина прочитанной части; 0 - журнал с другими параметрами, пишется заново
+    private static long read(Path file, String settings, Map<String, Media> completed) throws IOException {
+        long validLength = 0;
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+            long position = 0;
+            boolean header = true;
+            int b;
+            while ((b = input.read()) >= 0) {
+                ++position;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String json = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                line.reset();
+                if (header) {
+                    String journalSettings = readSettings(json);
+                    if (!settings.equals(journalSettings)) {
+                        log.warn("Progress journal {} was written with other settings ({}), starting over", file, journalSettings);
+                        return 0;
+                    }
+                    header = false;
+                } else {
+                    Media media;
+                    try {
+                        media = MediaReader.parseMedia(json);
+                    } catch (IOException e) {
+                        log.warn("Progress journal {} is damaged at byte {}, the rest is ignored: {}", file, validLength, e.toString());
+                        break;
+                    }
+                    String path = media.getPaths() != null && media.getPaths().size() == 1 ? media.getPaths().values().iterator().next() : null;
+                    if (path != null) {
+                        completed.put(path, media);
+                    }
+                }
+                validLength = position;
+            }
+        }
+        log.info("Progress journal {}: {} files already processed", file, completed.size());
+        return validLength;
+    }
+
+    @Nullable
+    private static String readSettings(String json) {
+        try {
+            return OBJECT_MAPPER.readTree(json).path(SETTINGS).asText(null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //true - файл уже обработан и не изменился, метаданные и хеши перенесены из журнала
+    public boolean apply(Media media) {
+        if (media.getLocalPath() == null) {
+            return false;
+        }
+        Media journaled;
+        synchronized (completed) {
+            journaled = completed.remove(media.getLocalPath().toString());
+        }
+        if (journaled == null || journaled.getSize() != media.getSize()
+            || journaled.getLastModify() == null || journaled.getLastModify().getTime() != media.getLastModify().getTime()) {
+            return false;
+        }
+        //в JSON время с точностью до миллисекунд, дата из атрибутов файла у обойденной записи точнее
+        if (journaled.getCreatedAt() != null && journaled.getCreatedAt().getTime() != media.getCreatedAt().getTime()) {
+            media.setCreateDate(journaled.getCreatedAt());
+        }
+        if (journaled.getMetadata() != null && !journaled.getMetadata().isEmpty()) {
+            media.setMetadata(journaled.getMetadata());
+        }
+        media.setMd5Hash(journaled.getMd5Hash());
+        media.setQuickHash(journaled.getQuickHash());
+        media.setPerceptualHash(journaled.getPerceptualHash());
+        restored.add(media);
+        return true;
+    }
+
+    //есть записи прерванного запуска: часть из них уже может быть в БД
+    public boolean isResumed() {
+        return resumed > 0;
+    }
+
+    //пишется в файл сразу, на диск - в force(): запись должна попасть в журнал раньше, чем в БД
+    @Override
+    public void accept(Media media) throws IOException {
+        if (restored.remove(media)) {
+            return;
+        }
+        writeLine(MEDIA_WRITER.writeValueAsBytes(media));
+        ++count;
+    }
+
+    private void writeLine(byte[] json) throws IOException {
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        output.write(line);
+    }
+
+    //вызывается перед фиксацией в БД записей, уже переданных в accept
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    //запуск завершен, журнал больше не нужен
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+        log.info("Progress journal {} deleted: {} files restored, {} files processed", file, resumed, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,285 @@
+package ru.alejov.media.gallery;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+public class ScanCache implements Closeable {
+
+    private static final int MAGIC = 0x4D475343;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final byte UNKNOWN_TAG = -1;
+    private static final byte PERCEPTUAL_HASH_NOT_CALCULATED = 0;
+    private static final byte PERCEPTUAL_HASH_PRESENT = 1;
+    private static final byte PERCEPTUAL_HASH_NONE = 2;
+
+    private final Path file;
+    private final Path tmpFile;
+    @Nullable
+    private final ByteBuffer buffer;
+    private final long[] hashes;
+    private final int[] offsets;
+    private final int mask;
+    private final DataOutputStream output;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(512);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long stored;
+    private boolean committed;
+
+    private ScanCache(Path file, @Nullable ByteBuffer buffer, int count) throws IOException {
+        this.file = file;
+        this.tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.buffer = buffer;
+        int capacity = Integer.highestOneBit(Math.max(16, count * 2 - 1)) << 1;
+        this.hashes = new long[capacity];
+        this.offsets = new int[capacity];
+        this.mask = capacity - 1;
+        this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile), 1 << 16));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+    }
+
+    public static ScanCache open(Path file) throws IOException {
+        ByteBuffer buffer = null;
+        int count = 0;
+        if (Files.exists(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    log.warn("Scan cache {} is too large ({} bytes), ignored", file, size);
+                } else if (size >= HEADER_SIZE) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                        log.warn("Scan cache {} has unknown format, ignored", file);
+                        buffer = null;
+                    } else {
+                        count = countRecords(buffer);
+                    }
+                }
+            }
+        }
+        ScanCache scanCache = new ScanCache(file, buffer, count);
+        if (buffer != null) {
+            scanCache.buildIndex();
+        }
+        log.info("Scan cache {} loaded: {} entries", file, count);
+        return scanCache;
+    }
+
+    private static int countRecords(ByteBuffer buffer) {
+        int count = 0;
+        int position = HEADER_SIZE;
+        int limit = buffer.limit();
+        while (position + 4 <= limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > limit) {
+                break;
+            }
+            position += 4 + length;
+            ++count;
+        }
+        return count;
+    }
+
+    private void buildIndex() {
+        int position = HEADER_SIZE;
+        int limit = buffer.limit();
+        while (position + 4 <= limit) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > limit) {
+                break;
+            }
+            int recordOffset = position + 4;
+            int pathLength = buffer.getInt(recordOffset);
+            long hash = hash(buffer, recordOffset + 4, pathLength);
+            int index = (int) (hash ^ (hash >>> 32)) & mask;
+            while (hashes[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            hashes[index] = hash;
+            offsets[index] = recordOffset;
+            position = recordOffset + length;
+        }
+    }
+
+    //hashAlgorithm - нужен полный хеш этим алгоритмом, хеш другого алгоритма считается промахом
+    public boolean apply(Media media, @Nullable HashAlgorithm hashAlgorithm, boolean needQuickHash, boolean needPerceptualHash) {
+        if (buffer == null || media.getLocalPath() == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        byte[] path = media.getLocalPath().toString().getBytes(StandardCharsets.UTF_8);
+        int offset = find(path);
+        if (offset < 0) {
+            misses.incrementAndGet();
+            return false;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 4 + path.length);
+        long size = record.getLong();
+        long lastModify = record.getLong();
+        long createdAt = record.getLong();
+        String md5Hash = readString(record);
+        String quickHash = readString(record);
+        byte perceptualHashState = record.get();
+        long perceptualHash = record.getLong();
+        if (size != media.getSize() || lastModify != media.getLastModify().getTime()
+            || (hashAlgorithm != null && HashAlgorithm.ofHash(md5Hash) != hashAlgorithm) || (needQuickHash && quickHash == null)
+            || (needPerceptualHash && perceptualHashState == PERCEPTUAL_HASH_NOT_CALCULATED)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        int tagCount = record.get() & 0xFF;
+        Map<String, String> metadata = new TreeMap<>();
+        for (int i = 0; i < tagCount; i++) {
+            byte ordinal = record.get();
+            String key = ordinal == UNKNOWN_TAG ? readString(record) : MetaTag.values()[ordinal].name();
+            metadata.put(key, readString(record));
+        }
+        media.setCreateDate(new Timestamp(createdAt));
+        if (!metadata.isEmpty()) {
+            media.setMetadata(metadata);
+        }
+        if (md5Hash != null) {
+            media.setMd5Hash(md5Hash);
+        }
+        if (quickHash != null) {
+            media.setQuickHash(quickHash);
+        }
+        if (perceptualHashState == PERCEPTUAL_HASH_PRESENT) {
+            media.setPerceptualHash(perceptualHash);
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    private int find(byte[] path) {
+        long hash = hash(path);
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        while (hashes[index] != 0) {
+            if (hashes[index] == hash && pathEquals(offsets[index], path)) {
+                return offsets[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean pathEquals(int offset, byte[] path) {
+        if (buffer.getInt(offset) != path.length) {
+            return false;
+        }
+        for (int i = 0; i < path.length; i++) {
+            if (buffer.get(offset + 4 + i) != path[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //perceptualHashCalculated - хеш считался, отсутствие хеша запоминается, чтобы не декодировать файл повторно
+    public void store(Media media, boolean perceptualHashCalculated) throws IOException {
+        if (media.getLocalPath() == null) {
+            return;
+        }
+        recordBytes.reset();
+        writeString(record, media.getLocalPath().toString());
+        record.writeLong(media.getSize());
+        record.writeLong(media.getLastModify().getTime());
+        record.writeLong(media.getCreatedAt().getTime());
+        writeString(record, media.getMd5Hash());
+        writeString(record, media.getQuickHash());
+        Long perceptualHash = media.getPerceptualHash();
+        record.writeByte(perceptualHash != null ? PERCEPTUAL_HASH_PRESENT
+                                                : perceptualHashCalculated ? PERCEPTUAL_HASH_NONE : PERCEPTUAL_HASH_NOT_CALCULATED);
+        record.writeLong(perceptualHash != null ? perceptualHash : 0);
+        Map<String, String> metadata = media.getMetadata();
+        record.writeByte(metadata != null ? metadata.size() : 0);
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                MetaTag metaTag = MetaTag.of(entry.getKey());
+                if (metaTag != null) {
+                    record.writeByte(metaTag.ordinal());
+                } else {
+                    record.writeByte(UNKNOWN_TAG);
+                    writeString(record, entry.getKey());
+                }
+                writeString(record, entry.getValue());
+            }
+        }
+        output.writeInt(recordBytes.size());
+        recordBytes.writeTo(output);
+        ++stored;
+    }
+
+    public void commit() throws IOException {
+        output.close();
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        log.info("Scan cache {} saved: {} entries, {} hits, {} misses", file, stored, hits, misses);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            output.close();
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, @Nullable String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    private static long hash(ByteBuffer buffer, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (buffer.get(i) & 0xFF)) * 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+}
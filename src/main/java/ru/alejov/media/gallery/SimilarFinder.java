@@ -0,0 +1,180 @@
+package ru.alejov.media.gallery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Поиск похожих изображений по перцептивному хешу. Хеши каталога складываются в HammingIndex, каждое изображение
+ * ищет соседей в радиусе maxDistance, соседи объединяются в группы (система непересекающихся множеств),
+ * поэтому в группу попадают и цепочки: A похоже на B, B похоже на C.
+ * Записи без перцептивного хеша пропускаются.
+ */
+public class SimilarFinder {
+
+    private final Logger log;
+    private final int maxDistance;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<List<Entry>> groups = new ArrayList<>();
+    private final List<Entry> matches = new ArrayList<>();
+    private long[] hashes = new long[1024];
+    private HammingIndex index;
+    private long total;
+    //хеш заданного изображения, null - поиск всех групп
+    @Nullable
+    private Long query;
+
+    public SimilarFinder(Logger log, int maxDistance) {
+        this.log = log;
+        this.maxDistance = maxDistance;
+    }
+
+    //все группы похожих изображений каталога
+    public void find(MediaSource mediaSource) throws IOException, SQLException {
+        load(mediaSource);
+        int[] parents = new int[entries.size()];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = i;
+        }
+        for (Entry entry : entries) {
+            index.search(entry.hash, maxDistance, (int found) -> {
+                int root1 = root(parents, entry.index);
+                int root2 = root(parents, found);
+                if (root1 != root2) {
+                    parents[Math.max(root1, root2)] = Math.min(root1, root2);
+                }
+            });
+        }
+        List<List<Entry>> byRoot = new ArrayList<>(Collections.nCopies(entries.size(), (List<Entry>) null));
+        for (Entry entry : entries) {
+            int root = root(parents, entry.index);
+            List<Entry> group = byRoot.get(root);
+            if (group == null) {
+                group = new ArrayList<>(2);
+                byRoot.set(root, group);
+            }
+            group.add(entry);
+        }
+        for (List<Entry> group : byRoot) {
+            if (group != null && group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        groups.sort(Comparator.comparingInt((List<Entry> group) -> group.size()).reversed());
+        log.info("Found {} groups of similar images", groups.size());
+    }
+
+    //изображения каталога, похожие на заданное
+    public void find(MediaSource mediaSource, long hash) throws IOException, SQLException {
+        load(mediaSource);
+        query = hash;
+        index.search(hash, maxDistance, (int found) -> matches.add(entries.get(found)));
+        matches.sort(Comparator.comparingInt((Entry entry) -> PerceptualHashUtils.distance(hash, entry.hash))
+                               .thenComparing((Entry entry) -> entry.name));
+        log.info("Found {} similar images", matches.size());
+    }
+
+    public void writeReport(Path file) throws IOException {
+        try (JsonGenerator generator = new JsonFactory().createGenerator(Files.newBufferedWriter(file))) {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeNumberField("files", total);
+            generator.writeNumberField("hashed", entries.size());
+            generator.writeNumberField("maxDistance", maxDistance);
+            if (query != null) {
+                generator.writeStringField("perceptualHash", toHex(query));
+                generator.writeArrayFieldStart("similar");
+                for (Entry entry : matches) {
+                    writeEntry(generator, entry, PerceptualHashUtils.distance(query, entry.hash));
+                }
+                generator.writeEndArray();
+            } else {
+                generator.writeArrayFieldStart("groups");
+                for (List<Entry> group : groups) {
+                    generator.writeStartArray();
+                    //расстояние считается до первой записи группы
+                    for (Entry entry : group) {
+                        writeEntry(generator, entry, PerceptualHashUtils.distance(group.get(0).hash, entry.hash));
+                    }
+                    generator.writeEndArray();
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private void load(MediaSource mediaSource) throws IOException, SQLException {
+        mediaSource.drainTo((Media media) -> {
+            ++total;
+            Long hash = media.getPerceptualHash();
+            if (hash != null) {
+                if (entries.size() == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                hashes[entries.size()] = hash;
+                entries.add(new Entry(entries.size(), media, hash));
+            }
+        });
+        index = new HammingIndex(hashes, entries.size());
+        log.info("Read {} files, {} with perceptual hash", total, entries.size());
+    }
+
+    private static void writeEntry(JsonGenerator generator, Entry entry, int distance) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", entry.name);
+        generator.writeStringField("perceptualHash", toHex(entry.hash));
+        generator.writeNumberField("distance", distance);
+        generator.writeObjectFieldStart("paths");
+        for (Map.Entry<String, String> path : entry.paths.entrySet()) {
+            generator.writeStringField(path.getKey(), path.getValue());
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    //корень множества со сжатием пути
+    private static int root(int[] parents, int index) {
+        int root = index;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        while (parents[index] != root) {
+            int next = parents[index];
+            parents[index] = root;
+            index = next;
+        }
+        return root;
+    }
+
+    private static class Entry {
+        private final int index;
+        private final String name;
+        private final long hash;
+        private final Map<String, String> paths;
+
+        private Entry(int index, Media media, long hash) {
+            this.index = index;
+            this.name = media.getName();
+            this.hash = hash;
+            this.paths = media.getPaths() != null ? media.getPaths() : Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package ru.alejov.media.gallery;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static ru.alejov.media.gallery.SnapshotWriter.DICTIONARY_RECORD;
+import static ru.alejov.media.gallery.SnapshotWriter.FLAG_SORTED;
+import static ru.alejov.media.gallery.SnapshotWriter.HAS_CREATED_AT;
+import static ru.alejov.media.gallery.SnapshotWriter.HAS_LAST_MODIFY;
+import static ru.alejov.media.gallery.SnapshotWriter.HEADER_SIZE;
+import static ru.alejov.media.gallery.SnapshotWriter.MAGIC;
+import static ru.alejov.media.gallery.SnapshotWriter.MEDIA_RECORD;
+import static ru.alejov.media.gallery.SnapshotWriter.VERSION;
+
+/**
+ * Чтение выгрузки SnapshotWriter через отображение файла в память, по одной записи.
+ * Файл отображается окнами, поэтому размер не ограничен 2 ГБ.
+ * Порядок записей берется из заголовка, файлы из корзины (.trashed*) пропускаются без разбора остальных полей.
+ */
+public class SnapshotReader implements Iterator<Media>, Closeable {
+    public static final String EXTENSION = ".mgs";
+    private static final long WINDOW_SIZE = 256L << 20;
+    private static final byte[] TRASHED = ".trashed".getBytes(StandardCharsets.UTF_8);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final boolean sorted;
+    private final long count;
+    private final int version;
+    private final List<String> dictionary = new ArrayList<>();
+    private ByteBuffer buffer;
+    private long bufferStart;
+    private byte[] bytes = new byte[256];
+    @Nullable
+    private Media next;
+    private long trashedCount;
+
+    private SnapshotReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            throw new IOException("Unknown snapshot format");
+        }
+        map(0, HEADER_SIZE);
+        version = buffer.getInt(4);
+        if (buffer.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException("Unknown snapshot format");
+        }
+        sorted = (buffer.getInt(8) & FLAG_SORTED) != 0;
+        count = buffer.getLong(12);
+        buffer.position(HEADER_SIZE);
+        next = readNext();
+    }
+
+    public static SnapshotReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new SnapshotReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static boolean isSnapshot(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+
+    //записи идут в порядке Media::compareTo, можно сливать с БД без сортировки в памяти
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTrashedCount() {
+        return trashedCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Media next() {
+        Media media = next;
+        if (media == null) {
+            throw new NoSuchElementException();
+        }
+        try {
+            next = readNext();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return media;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        channel.close();
+    }
+
+    @Nullable
+    private Media readNext() throws IOException {
+        long position;
+        while ((position = bufferStart + buffer.position()) < fileSize) {
+            if (buffer.remaining() < 4) {
+                map(position, 4);
+            }
+            int length = buffer.getInt();
+            if (length <= 0) {
+                throw new IOException("Broken snapshot record at " + position);
+            }
+            if (buffer.remaining() < length) {
+                map(position + 4, length);
+            }
+            int end = buffer.position() + length;
+            byte kind = buffer.get();
+            if (kind == DICTIONARY_RECORD) {
+                dictionary.add(readBytes(length - 1));
+            } else if (kind == MEDIA_RECORD) {
+                if (!isTrashed()) {
+                    Media media = readMedia();
+                    buffer.position(end);
+                    return media;
+                }
+                ++trashedCount;
+            } else {
+                throw new IOException("Unknown snapshot record " + kind + " at " + position);
+            }
+            buffer.position(end);
+        }
+        return null;
+    }
+
+    private void map(long position, int length) throws IOException {
+        if (position + length > fileSize) {
+            throw new IOException("Snapshot is truncated at " + position);
+        }
+        long size = Math.min(Math.max(WINDOW_SIZE, length), fileSize - position);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        bufferStart = position;
+    }
+
+    private boolean isTrashed() {
+        int position = buffer.position();
+        int length = (int) readVarLong() - 1;
+        boolean trashed = length >= TRASHED.length;
+        for (int i = 0; trashed && i < TRASHED.length; i++) {
+            trashed = buffer.get(buffer.position() + i) == TRASHED[i];
+        }
+        buffer.position(position);
+        return trashed;
+    }
+
+    //время в микросекундах с четвертой версии
+    private Timestamp toTimestamp(long time) {
+        return version >= 4 ? Media.toTimestamp(time) : new Timestamp(time);
+    }
+
+    private Media readMedia() throws IOException {
+        String name = readString();
+        if (name == null) {
+            throw new IOException("Media without name at " + (bufferStart + buffer.position()));
+        }
+        int times = buffer.get();
+        long base = (times & HAS_CREATED_AT) != 0 ? buffer.getLong() : 0;
+        Timestamp createdAt = (times & HAS_CREATED_AT) != 0 ? toTimestamp(base) : null;
+        Timestamp lastModify = null;
+        if ((times & HAS_LAST_MODIFY) != 0) {
+            long delta = readVarLong();
+            lastModify = toTimestamp(base + ((delta >>> 1) ^ -(delta & 1)));
+        }
+        long size = readVarLong();
+        String md5Hash = readHash();
+        //быстрый отпечаток появился во второй версии
+        String quickHash = version >= 2 ? readHash() : null;
+        //перцептивный хеш - в третьей
+        Long perceptualHash = version >= 3 && buffer.get() != 0 ? buffer.getLong() : null;
+        String type = getDictionaryValue();
+        Map<String, String> paths = readPaths(name);
+        Map<String, String> metadata = readMetadata();
+        if (metadata != null) {
+            MetadataUtils.clearMetadataValues(metadata);
+        }
+        Media media = new Media(name, createdAt, lastModify, paths, md5Hash, size, type, metadata, null);
+        media.setQuickHash(quickHash);
+        media.setPerceptualHash(perceptualHash);
+        return media;
+    }
+
+    @Nullable
+    private Map<String, String> readPaths(String name) throws IOException {
+        int size = (int) readVarLong() - 1;
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> paths = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String host = getDictionaryValue();
+            String directory = getDictionaryValue();
+            paths.put(host, directory != null ? directory + name : readString());
+        }
+        return paths;
+    }
+
+    @Nullable
+    private Map<String, String> readMetadata() throws IOException {
+        int size = (int) readVarLong() - 1;
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> metadata = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            metadata.put(getDictionaryValue(), readString());
+        }
+        return metadata;
+    }
+
+    @Nullable
+    private String getDictionaryValue() throws IOException {
+        int id = (int) readVarLong();
+        if (id == 0) {
+            return null;
+        }
+        if (id > dictionary.size()) {
+            throw new IOException("Unknown dictionary entry " + id);
+        }
+        return dictionary.get(id - 1);
+    }
+
+    @Nullable
+    private String readHash() {
+        long value = readVarLong();
+        if ((value & 1) == 0) {
+            return value != 0 ? readBytes((int) (value >>> 1) - 1) : null;
+        }
+        int length = (int) (value >>> 1);
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get() & 0xFF;
+            chars[i * 2] = HEX_DIGITS[b >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0xF];
+        }
+        return new String(chars);
+    }
+
+    @Nullable
+    private String readString() {
+        int length = (int) readVarLong() - 1;
+        return length >= 0 ? readBytes(length) : null;
+    }
+
+    private String readBytes(int length) {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,236 @@
+package ru.alejov.media.gallery;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Пишет выгрузку в бинарном формате, который читает SnapshotReader.
+ * Заголовок: MAGIC, VERSION, флаги, число записей. Дальше записи с длиной впереди: строка словаря
+ * (хосты, типы, ключи метаданных, каталоги) или Media, ссылающаяся на словарь по номеру.
+ * Строка словаря всегда пишется раньше первой ссылки на нее.
+ * Путь, оканчивающийся именем файла, хранится как номер каталога, hex-хеш - байтами, lastModify - разницей с createdAt.
+ * Время - в микросекундах, как в Media и в БД (до четвертой версии - в миллисекундах).
+ * Файл пишется во временный и заменяет прежний только в commit(), неудачная выгрузка старый снимок не портит.
+ */
+public class SnapshotWriter implements MediaSink {
+    static final int MAGIC = 0x4D475353;
+    static final int VERSION = 4;
+    static final int HEADER_SIZE = 20;
+    static final int FLAG_SORTED = 1;
+    static final byte DICTIONARY_RECORD = 0;
+    static final byte MEDIA_RECORD = 1;
+    static final int HAS_CREATED_AT = 1;
+    static final int HAS_LAST_MODIFY = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final Path tmpFile;
+    private final FileChannel channel;
+    private final DataOutputStream output;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(512);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    @Nullable
+    private Media previous;
+    private boolean sorted = true;
+    private long count;
+    private boolean committed;
+
+    public SnapshotWriter(Path file) throws IOException {
+        this.file = file;
+        this.tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        //флаги и число записей переписываются в commit()
+        output.write(new byte[HEADER_SIZE]);
+    }
+
+    @Override
+    public void accept(Media media) throws IOException {
+        recordBytes.reset();
+        record.writeByte(MEDIA_RECORD);
+        String name = media.getName();
+        writeString(record, name);
+        writeTimes(record, media.getCreatedAt(), media.getLastModify());
+        writeVarLong(record, media.getSize());
+        writeHash(record, media.getMd5Hash());
+        writeHash(record, media.getQuickHash());
+        writePerceptualHash(record, media.getPerceptualHash());
+        writeVarLong(record, getId(media.getType()));
+        writePaths(media.getPaths(), name);
+        writeMetadata(media.getMetadata());
+        output.writeInt(recordBytes.size());
+        recordBytes.writeTo(output);
+        if (previous != null && previous.compareTo(media) > 0) {
+            sorted = false;
+        }
+        previous = media;
+        ++count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    //вызывается после успешной выгрузки всех записей
+    public void commit() throws IOException {
+        try {
+            output.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(sorted ? FLAG_SORTED : 0).putLong(count).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        } finally {
+            output.close();
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            output.close();
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    //количество + 1, 0 - null; хост из словаря, путь - номером каталога или целиком (0 и строка)
+    private void writePaths(@Nullable Map<String, String> paths, String name) throws IOException {
+        if (paths == null) {
+            writeVarLong(record, 0);
+            return;
+        }
+        writeVarLong(record, paths.size() + 1);
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            writeVarLong(record, getId(entry.getKey()));
+            String path = entry.getValue();
+            if (path != null && path.length() > name.length() && path.endsWith(name)) {
+                writeVarLong(record, getId(path.substring(0, path.length() - name.length())));
+            } else {
+                writeVarLong(record, 0);
+                writeString(record, path);
+            }
+        }
+    }
+
+    //количество + 1, 0 - null; ключ из словаря, значение строкой
+    private void writeMetadata(@Nullable Map<String, String> metadata) throws IOException {
+        if (metadata == null) {
+            writeVarLong(record, 0);
+            return;
+        }
+        writeVarLong(record, metadata.size() + 1);
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            writeVarLong(record, getId(entry.getKey()));
+            writeString(record, entry.getValue());
+        }
+    }
+
+    //0 - null, новая строка сразу уходит в файл отдельной записью перед текущей Media
+    private int getId(@Nullable String value) throws IOException {
+        if (value == null) {
+            return 0;
+        }
+        Integer id = dictionary.get(value);
+        if (id == null) {
+            id = dictionary.size() + 1;
+            dictionary.put(value, id);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length + 1);
+            output.writeByte(DICTIONARY_RECORD);
+            output.write(bytes);
+        }
+        return id;
+    }
+
+    private static void writeTimes(DataOutputStream output, @Nullable Timestamp createdAt, @Nullable Timestamp lastModify) throws IOException {
+        output.writeByte((createdAt != null ? HAS_CREATED_AT : 0) | (lastModify != null ? HAS_LAST_MODIFY : 0));
+        long base = 0;
+        if (createdAt != null) {
+            base = Media.toMicros(createdAt);
+            output.writeLong(base);
+        }
+        if (lastModify != null) {
+            long delta = Media.toMicros(lastModify) - base;
+            writeVarLong(output, (delta << 1) ^ (delta >> 63));
+        }
+    }
+
+    //0 - null, 1 и 8 байт хеша
+    private static void writePerceptualHash(DataOutputStream output, @Nullable Long hash) throws IOException {
+        if (hash == null) {
+            output.writeByte(0);
+        } else {
+            output.writeByte(1);
+            output.writeLong(hash);
+        }
+    }
+
+    //0 - null, (длина + 1) * 2 - строка, длина * 2 + 1 - hex в нижнем регистре, записанный байтами
+    private static void writeHash(DataOutputStream output, @Nullable String hash) throws IOException {
+        if (hash == null) {
+            writeVarLong(output, 0);
+            return;
+        }
+        if (!isHex(hash)) {
+            byte[] bytes = hash.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(output, (bytes.length + 1L) << 1);
+            output.write(bytes);
+            return;
+        }
+        int length = hash.length() / 2;
+        writeVarLong(output, ((long) length << 1) | 1);
+        for (int i = 0; i < length; i++) {
+            output.writeByte(Character.digit(hash.charAt(i * 2), 16) << 4 | Character.digit(hash.charAt(i * 2 + 1), 16));
+        }
+    }
+
+    private static boolean isHex(String value) {
+        if (value.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //длина + 1, 0 - null
+    private static void writeString(DataOutputStream output, @Nullable String value) throws IOException {
+        if (value == null) {
+            writeVarLong(output, 0);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(output, bytes.length + 1);
+            output.write(bytes);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+}
@@ -0,0 +1,273 @@
+package ru.alejov.media.gallery;
+
+import javax.annotation.Nullable;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+/**
+ * Миниатюры изображений в каталоге, адресуемом содержимым: directory/размер/ab/хеш.jpg, где хеш - hex полного
+ * хеша XXH64 файла (не зависит от настроек полного хеша: посчитанный XXH64 берется из записи, иначе считается здесь).
+ * Посчитанный здесь хеш записывается в запись без полного хеша, если полный хеш в настройках тоже XXH64: он попадает
+ * в БД и кеш сканирования, и неизмененный файл при следующем сканировании повторно не читается.
+ * Быстрый отпечаток не подходит: у разных файлов он может совпасть, и они получили бы одни миниатюры. Миниатюры
+ * с ключом-отпечатком (hex MD5, 32 символа) от прежних версий удаляются при первом открытии каталога, их переносу
+ * под новый ключ нельзя доверять по той же причине; каталог отмечается файлом version.
+ * Копии файла на разных устройствах и под разными именами получают одни и те же миниатюры, уже готовые миниатюры
+ * не создаются заново.
+ * Размер - длинная сторона в пикселях, изображения меньше размера не увеличиваются.
+ * Изображение декодируется один раз с прореживанием до ближайшего размера не меньше самой большой миниатюры,
+ * поворачивается по EXIF, меньшие миниатюры получаются уменьшением большей.
+ */
+public class ThumbnailCache {
+    private static final String EXTENSION = ".jpg";
+    private static final float QUALITY = 0.85f;
+    private static final HashAlgorithm KEY_ALGORITHM = HashAlgorithm.XXH64;
+    private static final String VERSION_FILE = "version";
+    private static final String VERSION = "xxh64";
+    private static final int LEGACY_KEY_LENGTH = 32;
+    private static final Metrics.Timer THUMBNAIL_TIMER = Metrics.timer("thumbnail");
+
+    private final Path directory;
+    private final int[] sizes;
+    private final boolean storeKey;
+    private final AtomicInteger generated = new AtomicInteger();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private ThumbnailCache(Path directory, int[] sizes, HashAlgorithm hashAlgorithm) {
+        this.directory = directory;
+        this.sizes = sizes.clone();
+        Arrays.sort(this.sizes);
+        this.storeKey = hashAlgorithm == KEY_ALGORITHM;
+    }
+
+    //hashAlgorithm - алгоритм полного хеша в настройках сканирования
+    public static ThumbnailCache open(Path directory, int[] sizes, HashAlgorithm hashAlgorithm) throws IOException {
+        Path versionFile = directory.resolve(VERSION_FILE);
+        if (!Files.exists(versionFile)) {
+            if (Files.isDirectory(directory)) {
+                log.info("Thumbnail cache {}: {} thumbnails with legacy keys removed", directory, removeLegacyThumbnails(directory));
+            }
+            Files.createDirectories(directory);
+            Files.write(versionFile, VERSION.getBytes(StandardCharsets.UTF_8));
+        }
+        return new ThumbnailCache(directory, sizes, hashAlgorithm);
+    }
+
+    private static int removeLegacyThumbnails(Path directory) throws IOException {
+        int[] removed = new int[1];
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = file.getFileName().toString();
+                if (name.length() == LEGACY_KEY_LENGTH + EXTENSION.length() && name.endsWith(EXTENSION)) {
+                    Files.delete(file);
+                    ++removed[0];
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return removed[0];
+    }
+
+    public Path getPath(String key, int size) {
+        return directory.resolve(String.valueOf(size)).resolve(key.substring(0, 2)).resolve(key + EXTENSION);
+    }
+
+    //запись меняется только установкой полного хеша, см. описание класса
+    public Media process(Media media) {
+        Path localPath = media.getLocalPath();
+        if (!"i".equals(media.getType()) || localPath == null) {
+            return media;
+        }
+        String hash = media.getMd5Hash();
+        if (HashAlgorithm.ofHash(hash) != KEY_ALGORITHM) {
+            try {
+                hash = HashUtils.getHash(localPath, KEY_ALGORITHM);
+            } catch (RuntimeException e) {
+                log.warn("Image {} thumbnail error: {}", localPath, e.toString());
+                failed.incrementAndGet();
+                return media;
+            }
+            if (storeKey && media.getMd5Hash() == null) {
+                media.setMd5Hash(hash);
+            }
+        }
+        //без префикса алгоритма: ':' не везде допустим в имени файла
+        String key = hash.substring(hash.indexOf(':') + 1);
+        List<Integer> missing = new ArrayList<>(sizes.length);
+        for (int size : sizes) {
+            if (!Files.exists(getPath(key, size))) {
+                missing.add(size);
+            }
+        }
+        if (missing.isEmpty()) {
+            cached.incrementAndGet();
+            return media;
+        }
+        long start = System.nanoTime();
+        Map<String, String> metadata = media.getMetadata();
+        String orientation = metadata != null ? metadata.get(MetaTag.Orientation.name()) : null;
+        try {
+            BufferedImage image = decode(localPath, missing.get(missing.size() - 1));
+            if (image == null) {
+                failed.incrementAndGet();
+                return media;
+            }
+            image = orient(image, PerceptualHashUtils.parseOrientation(orientation));
+            for (int i = missing.size() - 1; i >= 0; i--) {
+                image = scale(image, missing.get(i));
+                write(image, getPath(key, missing.get(i)));
+            }
+            generated.incrementAndGet();
+            THUMBNAIL_TIMER.record(start);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Image {} thumbnail error: {}", localPath, e.toString());
+            failed.incrementAndGet();
+        }
+        return media;
+    }
+
+    @Override
+    public String toString() {
+        return "generated=" + generated.get() + ", cached=" + cached.get() + ", failed=" + failed.get();
+    }
+
+    //прореживание при декодировании: длинная сторона остается не меньше size
+    @Nullable
+    private static BufferedImage decode(Path path, int size) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(path.toFile())) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / size);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    //поворот и отражение по значению EXIF Orientation 1..8 в том виде, в каком изображение показывают
+    private static BufferedImage orient(BufferedImage image, int orientation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        AffineTransform transform = new AffineTransform();
+        switch (orientation) {
+            case 2:
+                transform.setTransform(-1, 0, 0, 1, width, 0);
+                break;
+            case 3:
+                transform.setTransform(-1, 0, 0, -1, width, height);
+                break;
+            case 4:
+                transform.setTransform(1, 0, 0, -1, 0, height);
+                break;
+            case 5:
+                transform.setTransform(0, 1, 1, 0, 0, 0);
+                break;
+            case 6:
+                transform.setTransform(0, 1, -1, 0, height, 0);
+                break;
+            case 7:
+                transform.setTransform(0, -1, -1, 0, height, width);
+                break;
+            case 8:
+                transform.setTransform(0, -1, 1, 0, 0, width);
+                break;
+            default:
+                //JPEG пишется только из RGB или оттенков серого без прозрачности
+                int type = image.getType();
+                if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY) {
+                    return image;
+                }
+        }
+        boolean transposed = orientation >= 5;
+        return draw(image, transposed ? height : width, transposed ? width : height, transform);
+    }
+
+    //уменьшение не больше чем вдвое за шаг, иначе билинейная интерполяция теряет пиксели
+    private static BufferedImage scale(BufferedImage image, int size) {
+        BufferedImage result = image;
+        while (true) {
+            int longSide = Math.max(result.getWidth(), result.getHeight());
+            if (longSide <= size) {
+                return result;
+            }
+            double scale = Math.max((double) size / longSide, 0.5);
+            int width = Math.max(1, (int) Math.round(result.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(result.getHeight() * scale));
+            result = draw(result, width, height, AffineTransform.getScaleInstance((double) width / result.getWidth(),
+                                                                                  (double) height / result.getHeight()));
+        }
+    }
+
+    //прозрачные области на белом фоне: в JPEG нет альфа-канала
+    private static BufferedImage draw(BufferedImage image, int width, int height, AffineTransform transform) {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    //запись во временный файл и переименование: параллельные сканирования не видят недописанную миниатюру
+    private static void write(BufferedImage image, Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmpFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            try (ImageOutputStream output = ImageIO.createImageOutputStream(tmpFile.toFile())) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(QUALITY);
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            Files.move(tmpFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ru.alejov.media.gallery;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Потоковый XXH64 с seed = 0 по спецификации xxHash. Данные разбираются полосами по 32 байта,
+ * неполная полоса копится между вызовами update. Результат - 8 байт в порядке big-endian, как у xxhsum.
+ */
+final class XxHash64 implements HashAlgorithm.Hasher {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    private final ByteBuffer memory = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long length;
+
+    XxHash64() {
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        length = 0;
+        memory.clear();
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = data.position();
+        int limit = data.limit();
+        buffer.position(limit);
+        length += limit - position;
+        if (memory.position() > 0) {
+            int count = Math.min(STRIPE - memory.position(), limit - position);
+            data.limit(position + count);
+            memory.put(data);
+            data.limit(limit);
+            position += count;
+            if (memory.hasRemaining()) {
+                return;
+            }
+            v1 = round(v1, memory.getLong(0));
+            v2 = round(v2, memory.getLong(8));
+            v3 = round(v3, memory.getLong(16));
+            v4 = round(v4, memory.getLong(24));
+            memory.clear();
+        }
+        long a = v1;
+        long b = v2;
+        long c = v3;
+        long d = v4;
+        for (; limit - position >= STRIPE; position += STRIPE) {
+            a = round(a, data.getLong(position));
+            b = round(b, data.getLong(position + 8));
+            c = round(c, data.getLong(position + 16));
+            d = round(d, data.getLong(position + 24));
+        }
+        v1 = a;
+        v2 = b;
+        v3 = c;
+        v4 = d;
+        data.position(position);
+        memory.put(data);
+    }
+
+    @Override
+    public byte[] digest() {
+        long hash;
+        if (length >= STRIPE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += length;
+        int end = memory.position();
+        int position = 0;
+        for (; position + 8 <= end; position += 8) {
+            hash ^= round(0, memory.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (position + 4 <= end) {
+            hash ^= (memory.getInt(position) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        for (; position < end; position++) {
+            hash ^= (memory.get(position) & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        reset();
+        return ByteBuffer.allocate(8).putLong(hash).array();
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        return (acc ^ round(0, value)) * PRIME1 + PRIME4;
+    }
+}
@@ -0,0 +1,201 @@
+package ru.alejov.media.gallery.init;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+/**
+ * Наблюдение за деревом каталогов через WatchService: каждый каталог регистрируется отдельно, новые каталоги -
+ * по мере появления вместе с уже лежащими в них файлами. События создания и изменения одного файла сливаются,
+ * файл выдается, когда событий по нему не было debounceMillis: копирование большого файла дает много событий
+ * изменения, а читать его надо один раз и целиком. Перемещение внутри дерева приходит как создание в новом месте.
+ * Удаление убирает файл из ожидающих, у удаленного или перемещенного каталога отменяются ключи всего поддерева:
+ * inotify следит за каталогом, а не за путем, и без отмены ключ после переименования отдавал бы старый путь.
+ * Записи в БД при удалении не трогаются, как и при сканировании.
+ * При переполнении очереди событий каталог перечитывается полностью.
+ */
+final class DirectoryWatcher implements Closeable {
+
+    private final WatchService watchService;
+    //файл -> время последнего события; порядок - по последнему событию, первый файл ждет дольше всех
+    private final LinkedHashMap<Path, Long> pending = new LinkedHashMap<>();
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+
+    DirectoryWatcher(Path root) throws IOException {
+        watchService = root.getFileSystem().newWatchService();
+        log.info("Watching {} directories under {}", registerTree(root, false), root);
+    }
+
+    //блокируется до появления файлов без событий дольше debounceMillis, возвращает не больше maxFiles из них
+    List<Path> awaitChanges(long debounceMillis, int maxFiles) throws IOException, InterruptedException {
+        long debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        while (true) {
+            WatchKey key;
+            if (pending.isEmpty()) {
+                key = watchService.take();
+            } else {
+                long waitNanos = pending.values().iterator().next() + debounceNanos - System.nanoTime();
+                if (waitNanos <= 0) {
+                    List<Path> ready = takeReady(debounceNanos, maxFiles);
+                    if (!ready.isEmpty()) {
+                        return ready;
+                    }
+                    continue;
+                }
+                key = watchService.poll(waitNanos, TimeUnit.NANOSECONDS);
+            }
+            while (key != null) {
+                processEvents(key);
+                key = watchService.poll();
+            }
+        }
+    }
+
+    //файлы вернутся через debounceMillis, например после ошибки записи в БД
+    void retry(Collection<Path> files) {
+        long now = System.nanoTime();
+        for (Path file : files) {
+            touch(file, now);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private List<Path> takeReady(long debounceNanos, int maxFiles) {
+        long now = System.nanoTime();
+        List<Path> ready = new ArrayList<>();
+        Iterator<Map.Entry<Path, Long>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext() && ready.size() < maxFiles) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (now - entry.getValue() < debounceNanos) {
+                break;
+            }
+            ready.add(entry.getKey());
+            iterator.remove();
+        }
+        return ready;
+    }
+
+    private void processEvents(WatchKey key) throws IOException {
+        Path directory = (Path) key.watchable();
+        if (keys.get(directory) != key) {
+            //ключ отменен при удалении или перемещении каталога, события относятся к прежнему пути
+            key.pollEvents();
+            key.cancel();
+            return;
+        }
+        long now = System.nanoTime();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("Watch events lost in {}, rescanning it", directory);
+                registerTree(directory, true);
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                remove(file);
+            } else if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    //файлы могли появиться до регистрации каталога
+                    registerTree(file, true);
+                }
+            } else {
+                touch(file, now);
+            }
+        }
+        //false - каталог удален или перемещен; при перемещении внутри дерева он придет как новый
+        if (!key.reset() && keys.get(directory) == key) {
+            keys.remove(directory);
+        }
+    }
+
+    //удаленный или перемещенный файл либо каталог вместе с поддеревом
+    private void remove(Path path) {
+        pending.remove(path);
+        if (!keys.containsKey(path)) {
+            return;
+        }
+        Iterator<Map.Entry<Path, WatchKey>> keyIterator = keys.entrySet().iterator();
+        while (keyIterator.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = keyIterator.next();
+            if (entry.getKey().startsWith(path)) {
+                entry.getValue().cancel();
+                keyIterator.remove();
+            }
+        }
+        pending.keySet().removeIf((Path file) -> file.startsWith(path));
+    }
+
+    private void register(Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        if (!directory.equals(key.watchable())) {
+            //тот же каталог под прежним путем: событие перемещения еще не обработано
+            key.cancel();
+            key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                     StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        keys.put(directory, key);
+    }
+
+    //повторная регистрация каталога под тем же путем возвращает тот же ключ
+    private int registerTree(Path root, boolean addFiles) throws IOException {
+        long now = System.nanoTime();
+        int[] directories = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                try {
+                    register(directory);
+                    ++directories[0];
+                } catch (IOException e) {
+                    log.error("Can't watch directory: {}: {}", directory, e.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (addFiles) {
+                    touch(file, now);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.error("Error on file: {}: {}", file, e.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return directories[0];
+    }
+
+    private void touch(Path file, long now) {
+        //в конец порядка, как самый свежий
+        pending.remove(file);
+        pending.put(file, now);
+    }
+}
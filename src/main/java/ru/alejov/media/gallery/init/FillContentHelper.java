@@ -2,38 +2,51 @@ package ru.alejov.media.gallery.init;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.alejov.media.gallery.ChunkedMediaReader;
+import ru.alejov.media.gallery.ChunkedMediaWriter;
 import ru.alejov.media.gallery.DateUtils;
-import ru.alejov.media.gallery.JsonIOHelper;
+import ru.alejov.media.gallery.DuplicateFinder;
+import ru.alejov.media.gallery.HashAlgorithm;
+import ru.alejov.media.gallery.JsonMediaWriter;
 import ru.alejov.media.gallery.Media;
+import ru.alejov.media.gallery.MediaReader;
+import ru.alejov.media.gallery.MediaSink;
+import ru.alejov.media.gallery.MediaSource;
+import ru.alejov.media.gallery.MetaTag;
+import ru.alejov.media.gallery.MergeMode;
 import ru.alejov.media.gallery.MetadataUtils;
+import ru.alejov.media.gallery.Metrics;
+import ru.alejov.media.gallery.PerceptualHashUtils;
 import ru.alejov.media.gallery.PgHelper;
+import ru.alejov.media.gallery.ProgressJournal;
+import ru.alejov.media.gallery.ScanCache;
+import ru.alejov.media.gallery.SimilarFinder;
+import ru.alejov.media.gallery.SnapshotReader;
+import ru.alejov.media.gallery.SnapshotWriter;
+import ru.alejov.media.gallery.ThumbnailCache;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class FillContentHelper {
 
@@ -41,16 +54,42 @@ public class FillContentHelper {
 
     private static final String PRIMARY_FILL = "--primary-fill";
     private static final String INCREMENTAL_FILL = "--incremental-fill";
+    private static final String WATCH = "--watch";
+    private static final String CONVERT = "--convert";
+    private static final String FIND_DUPLICATES = "--find-duplicates";
+    private static final String FIND_SIMILAR = "--find-similar";
     private static final String HELP = "--help";
 
-    private static final String ROOT_DIR = "root-dir";
+    static final String ROOT_DIR = "root-dir";
     private static final String SOURCE_FILE = "source-file";
     private static final String PG_SETTINGS_PATH = "pg-settings-path";
-    private static final String PARALLEL = "parallel";
-    private static final String CALCULATE_MD5 = "calculate-hash";
+    static final String PARALLEL = "parallel";
+    static final String CALCULATE_HASH = "calculate-hash";
+    static final String QUICK_HASH = "quick";
+    static final String HASH_ALGORITHM = "hash-algorithm";
+    static final String PERCEPTUAL_HASH = "perceptual-hash";
+    private static final String DISTANCE = "distance";
+    private static final String IMAGE = "image";
     private static final String DETAIL_LOG = "detail-log";
+    static final String IO_THREADS = "io-threads";
+    static final String CPU_THREADS = "cpu-threads";
+    static final String CACHE_FILE = "cache-file";
+    static final String THUMBNAIL_DIR = "thumbnail-dir";
+    static final String THUMBNAIL_SIZES = "thumbnail-sizes";
+    static final String THUMBNAIL_THREADS = "thumbnail-threads";
+    private static final String USE_COPY = "use-copy";
+    private static final String MERGE_MODE = "merge-mode";
+    private static final String DB_CONNECTIONS = "db-connections";
+    private static final String OUTPUT_FILE = "output-file";
+    private static final String CHUNK_SIZE = "chunk-size";
+    private static final String METRICS_FILE = "metrics-file";
+    private static final String JOURNAL_FILE = "journal-file";
+    private static final String DEBOUNCE = "debounce";
+    private static final String BATCH_SIZE = "batch-size";
 
-    private static final Predicate<Path> IS_FILE = (Path path) -> !Files.isDirectory(path);
+    private static final Metrics.Timer WALK_TIMER = Metrics.timer("walk");
+    private static final Metrics.Timer METADATA_TIMER = Metrics.timer("metadata");
+    private static final Metrics.Timer PERCEPTUAL_HASH_TIMER = Metrics.timer("hash.perceptual");
 
     static {
         try {
@@ -65,7 +104,7 @@ public class FillContentHelper {
         log = LoggerFactory.getLogger(FillContentHelper.class);
     }
 
-    //--primary-fill root-dir="rootDirectory" [pg-settings-path="path to jdbc.properties"] [parallel=true] [calculate-hash=true]
+    //--primary-fill root-dir="rootDirectory" [pg-settings-path="path to jdbc.properties"] [parallel=true] [calculate-hash=true] [use-copy=false]
     public static void main(String[] args) {
         try {
             Map<String, String> params = new HashMap<>();
@@ -77,9 +116,12 @@ public class FillContentHelper {
                 String rootDir = params.get(ROOT_DIR);
                 if (rootDir != null) {
                     String pgSettingsPath = params.get(PG_SETTINGS_PATH);
-                    boolean parallel = Boolean.parseBoolean(params.getOrDefault(PARALLEL, "false"));
-                    boolean calculateMd5 = Boolean.parseBoolean(params.getOrDefault(CALCULATE_MD5, "false"));
-                    primaryFill(rootDir, pgSettingsPath, parallel, calculateMd5);
+                    boolean useCopy = Boolean.parseBoolean(params.getOrDefault(USE_COPY, "true"));
+                    Path outputFile = Paths.get(params.getOrDefault(OUTPUT_FILE, "media.zip"));
+                    int chunkSize = Integer.parseInt(params.getOrDefault(CHUNK_SIZE, "100000"));
+                    String journalFile = params.get(JOURNAL_FILE);
+                    primaryFill(new ScanSettings(params), pgSettingsPath, useCopy, outputFile, chunkSize,
+                                journalFile != null ? Paths.get(journalFile) : null);
                 } else {
                     System.out.println("Missing parameter: " + ROOT_DIR);
                 }
@@ -89,23 +131,102 @@ public class FillContentHelper {
                     String rootDir = params.get(ROOT_DIR);
                     String sourceFile = params.get(SOURCE_FILE);
                     boolean parallel = Boolean.parseBoolean(params.getOrDefault(PARALLEL, "false"));
-                    boolean calculateMd5 = Boolean.parseBoolean(params.getOrDefault(CALCULATE_MD5, "false"));
                     boolean detailLog = Boolean.parseBoolean(params.getOrDefault(DETAIL_LOG, "false"));
+                    MergeMode mergeMode = MergeMode.of(params.getOrDefault(MERGE_MODE, MergeMode.LOCKSTEP.name()));
+                    int dbConnections = Integer.parseInt(params.getOrDefault(DB_CONNECTIONS, "4"));
                     if (rootDir != null) {
-                        incrementalFillFromDir(rootDir, pgSettingsPath, parallel, calculateMd5, detailLog);
+                        incrementalFillFromDir(new ScanSettings(params), pgSettingsPath, detailLog, mergeMode, dbConnections);
                     } else if (sourceFile != null) {
-                        incrementalFillFromFile(new File(sourceFile), pgSettingsPath, parallel, detailLog);
+                        incrementalFillFromFile(new File(sourceFile), pgSettingsPath, parallel, detailLog, mergeMode, dbConnections);
                     } else {
                         System.out.println("Missing any parameters: " + Arrays.asList(ROOT_DIR, SOURCE_FILE));
                     }
                 } else {
                     System.out.println("Missing parameter: " + PG_SETTINGS_PATH);
                 }
+            } else if (params.containsKey(WATCH)) {
+                String pgSettingsPath = params.get(PG_SETTINGS_PATH);
+                if (pgSettingsPath != null && params.containsKey(ROOT_DIR)) {
+                    boolean detailLog = Boolean.parseBoolean(params.getOrDefault(DETAIL_LOG, "false"));
+                    long debounceMillis = Long.parseLong(params.getOrDefault(DEBOUNCE, "2000"));
+                    int batchSize = Integer.parseInt(params.getOrDefault(BATCH_SIZE, "100"));
+                    if (QUICK_HASH.equalsIgnoreCase(params.get(CALCULATE_HASH))) {
+                        //отпечатки без полного хеша сверяются запросом по всей таблице, на пачку из нескольких файлов дороже полного хеша
+                        log.info("{}={} uses full hash in watch mode", CALCULATE_HASH, QUICK_HASH);
+                        params.put(CALCULATE_HASH, "true");
+                    }
+                    watch(new ScanSettings(params), pgSettingsPath, detailLog, debounceMillis, batchSize);
+                } else {
+                    System.out.println("Missing parameters: " + Arrays.asList(ROOT_DIR, PG_SETTINGS_PATH));
+                }
+            } else if (params.containsKey(CONVERT)) {
+                String sourceFile = params.get(SOURCE_FILE);
+                String outputFile = params.get(OUTPUT_FILE);
+                if (sourceFile != null && outputFile != null) {
+                    int chunkSize = Integer.parseInt(params.getOrDefault(CHUNK_SIZE, "100000"));
+                    convert(Paths.get(sourceFile), Paths.get(outputFile), chunkSize);
+                } else {
+                    System.out.println("Missing parameters: " + Arrays.asList(SOURCE_FILE, OUTPUT_FILE));
+                }
+            } else if (params.containsKey(FIND_DUPLICATES)) {
+                String pgSettingsPath = params.get(PG_SETTINGS_PATH);
+                String sourceFile = params.get(SOURCE_FILE);
+                if (pgSettingsPath != null || sourceFile != null) {
+                    Path outputFile = Paths.get(params.getOrDefault(OUTPUT_FILE, "duplicates.json"));
+                    HashAlgorithm hashAlgorithm = Boolean.parseBoolean(params.getOrDefault(CALCULATE_HASH, "false"))
+                                                  ? HashAlgorithm.of(params.getOrDefault(HASH_ALGORITHM, HashAlgorithm.XXH64.name()))
+                                                  : null;
+                    findDuplicates(pgSettingsPath, sourceFile, hashAlgorithm, outputFile);
+                } else {
+                    System.out.println("Missing any parameters: " + Arrays.asList(PG_SETTINGS_PATH, SOURCE_FILE));
+                }
+            } else if (params.containsKey(FIND_SIMILAR)) {
+                String pgSettingsPath = params.get(PG_SETTINGS_PATH);
+                String sourceFile = params.get(SOURCE_FILE);
+                if (pgSettingsPath != null || sourceFile != null) {
+                    Path outputFile = Paths.get(params.getOrDefault(OUTPUT_FILE, "similar.json"));
+                    int distance = Integer.parseInt(params.getOrDefault(DISTANCE, "6"));
+                    String image = params.get(IMAGE);
+                    findSimilar(pgSettingsPath, sourceFile, image != null ? Paths.get(image) : null, distance, outputFile);
+                } else {
+                    System.out.println("Missing any parameters: " + Arrays.asList(PG_SETTINGS_PATH, SOURCE_FILE));
+                }
             } else if (params.containsKey(HELP)) {
                 System.out.println("Example: [--primary-fill | --incremental-fill] root-dir=\"rootDirectory\" "
-                                   + "[pg-settings-path=\"path to jdbc.properties\"] [parallel=true] [calculate-hash=true] [detail-log=true]");
+                                   + "[pg-settings-path=\"path to jdbc.properties\" | output-file=\"media.zip\"] [parallel=true] "
+                                   + "[calculate-hash=true|quick (full hash or size + first/middle/last MB, full hash only on collisions)] "
+                                   + "[hash-algorithm=xxh64|md5 (full hash, default xxh64)] [perceptual-hash=true (dHash of images)] [detail-log=true] "
+                                   + "[cpu-threads=N (metadata extraction)] [io-threads=N (hashing)] [cache-file=\"path to scan cache\"] "
+                                   + "[thumbnail-dir=\"thumbnail cache directory\"] [thumbnail-sizes=256,1024 (long side)] "
+                                   + "[thumbnail-threads=N (thumbnail generation)] "
+                                   + "[use-copy=false (primary fill with batched INSERT instead of COPY)] "
+                                   + "[journal-file=\"fill.journal\" (primary fill: processed files are journaled, an interrupted run "
+                                   + "continues from the journal; deleted on success)] "
+                                   + "[merge-mode=lockstep|staging|partitioned (incremental fill row by row, through a temporary table "
+                                   + "or row by row over several connections)] [db-connections=N (partitioned merge, default 4)]\n"
+                                   + "Example: --watch root-dir=\"rootDirectory\" pg-settings-path=\"path to jdbc.properties\" "
+                                   + "[debounce=2000 (ms without events before a file is read)] [batch-size=100 (files per transaction)] "
+                                   + "[calculate-hash=true] [hash-algorithm=xxh64|md5] [perceptual-hash=true] [thumbnail-dir=...] [detail-log=true] "
+                                   + "(new and changed files only; run --incremental-fill once before to catch up)\n"
+                                   + "Any command: [metrics-file=\"metrics.json\" (counters, bytes/s and latency percentiles of walk, metadata, "
+                                   + "hashing, JSON I/O and database statements; also metrics.prom in Prometheus text format)]\n"
+                                   + "output-file and source-file ending with " + SnapshotReader.EXTENSION + " use the binary snapshot instead of zipped JSON, "
+                                   + "ending with " + ChunkedMediaReader.MANIFEST_SUFFIX + " - sorted gzipped JSON chunks next to the manifest "
+                                   + "[chunk-size=N (records per chunk, default 100000)]\n"
+                                   + "Example: --convert source-file=\"media.zip\" output-file=\"media" + SnapshotReader.EXTENSION + "\"\n"
+                                   + "Example: --find-duplicates [pg-settings-path=\"path to jdbc.properties\" | source-file=\"media.zip\"] "
+                                   + "[output-file=\"duplicates.json\"] [calculate-hash=true (hash local files of same-size candidates)] "
+                                   + "[hash-algorithm=xxh64|md5]\n"
+                                   + "Example: --find-similar [pg-settings-path=\"path to jdbc.properties\" | source-file=\"media.zip\"] "
+                                   + "[output-file=\"similar.json\"] [distance=N (max differing bits of 64, default 6)] "
+                                   + "[image=\"path to image\" (only images similar to this one)]");
             } else {
-                System.out.println("Unknown command. Only " + Arrays.asList(PRIMARY_FILL, INCREMENTAL_FILL, HELP) + " is supported now");
+                System.out.println("Unknown command. Only " + Arrays.asList(PRIMARY_FILL, INCREMENTAL_FILL, WATCH, CONVERT, FIND_DUPLICATES, FIND_SIMILAR, HELP) + " is supported now");
+            }
+            String metricsFile = params.get(METRICS_FILE);
+            if (metricsFile != null) {
+                Path prometheusFile = Metrics.writeReport(Paths.get(metricsFile));
+                log.info("Metrics written to {} and {}", metricsFile, prometheusFile);
             }
         } catch (Exception e) {
             log.error(e.toString(), e);
@@ -115,128 +236,443 @@ public class FillContentHelper {
     private static void incrementalFillFromFile(File sourceFile,
                                                 @Nonnull String jdbcPropertiesFile,
                                                 boolean parallel,
-                                                boolean detailLog) throws IOException, SQLException {
+                                                boolean detailLog,
+                                                MergeMode mergeMode,
+                                                int dbConnections) throws IOException, SQLException {
         log.info("Start incrementalFillFromFile(parallel={}, detailLog={})", parallel, detailLog);
         String hostName = getHostName();
-        List<Media> mediaList = collectMediaFromFile(sourceFile);
-        log.info("Finish incrementalFillFromFile");
-        new PgHelper(log).mergeToDatabase(jdbcPropertiesFile, mediaList, hostName, detailLog);
+        Path sourcePath = sourceFile.toPath();
+        if (SnapshotReader.isSnapshot(sourcePath)) {
+            try (SnapshotReader snapshotReader = SnapshotReader.open(sourcePath)) {
+                mergeFromFile(snapshotReader, snapshotReader.isSorted(), jdbcPropertiesFile, hostName, detailLog, mergeMode, dbConnections);
+            }
+        } else if (ChunkedMediaReader.isManifest(sourcePath)) {
+            try (ChunkedMediaReader chunkedMediaReader = ChunkedMediaReader.open(sourcePath)) {
+                mergeFromFile(chunkedMediaReader, true, jdbcPropertiesFile, hostName, detailLog, mergeMode, dbConnections);
+            }
+        } else {
+            //порядок отмечен в архиве при выгрузке, файл для проверки не читается
+            boolean sorted = MediaReader.isSorted(sourcePath);
+            try (MediaReader mediaReader = MediaReader.open(sourcePath)) {
+                mergeFromFile(mediaReader, sorted, jdbcPropertiesFile, hostName, detailLog, mergeMode, dbConnections);
+            }
+        }
     }
 
-    private static void incrementalFillFromDir(String rootDirectory,
+    //отсортированную выгрузку построчное слияние читает потоком; остальное, в том числе для слияния через
+    //временную таблицу и по диапазонам, собирается в список и сортируется
+    private static void mergeFromFile(Iterator<Media> media,
+                                      boolean sorted,
+                                      @Nonnull String jdbcPropertiesFile,
+                                      String hostName,
+                                      boolean detailLog,
+                                      MergeMode mergeMode,
+                                      int dbConnections) throws IOException, SQLException {
+        if (mergeMode == MergeMode.LOCKSTEP && sorted) {
+            log.info("Finish incrementalFillFromFile, source file is sorted, merging as a stream");
+            new PgHelper(log).mergeToDatabase(jdbcPropertiesFile, media, hostName, detailLog);
+        } else {
+            List<Media> mediaList = collectMedia(media);
+            log.info("Finish incrementalFillFromFile");
+            new PgHelper(log).mergeToDatabase(jdbcPropertiesFile, mediaList, hostName, detailLog, mergeMode, dbConnections);
+        }
+    }
+
+    private static void incrementalFillFromDir(ScanSettings scanSettings,
                                                @Nonnull String jdbcPropertiesFile,
-                                               boolean parallel,
-                                               boolean calculateMd5,
-                                               boolean detailLog) throws IOException, SQLException {
-        log.info("Start incrementalFillFromDir(parallel={}, detailLog={})", parallel, detailLog);
+                                               boolean detailLog,
+                                               MergeMode mergeMode,
+                                               int dbConnections) throws IOException, SQLException {
+        log.info("Start incrementalFillFromDir({}, detailLog={})", scanSettings, detailLog);
         Properties supportedExtensions = getSupportedExtensions();
         Set<String> unsupportedExtensions = new LinkedHashSet<>();
         String hostName = getHostName();
-        List<Media> mediaList = collectMediaFromDir(rootDirectory, parallel, supportedExtensions, unsupportedExtensions, hostName);
+        List<Media> mediaList;
+        try (ScanCache scanCache = openScanCache(scanSettings)) {
+            MediaSource mediaSource = createMediaSource(scanSettings, scanCache, supportedExtensions, unsupportedExtensions, hostName);
+            mediaList = collectMedia(mediaSource);
+        }
         if (!unsupportedExtensions.isEmpty()) {
             log.warn("Unsupported extensions: {}", unsupportedExtensions);
         }
-        if (calculateMd5) {
-            calculateMd5(parallel, mediaList);
-        }
         log.info("Finish incrementalFillFromDir");
-        new PgHelper(log).mergeToDatabase(jdbcPropertiesFile, mediaList, hostName, detailLog);
+        PgHelper pgHelper = new PgHelper(log);
+        pgHelper.mergeToDatabase(jdbcPropertiesFile, mediaList, hostName, detailLog, mergeMode, dbConnections);
+        if (scanSettings.calculateQuickHash) {
+            pgHelper.resolveQuickHashCollisions(jdbcPropertiesFile, hostName, scanSettings.hashAlgorithm);
+        }
     }
 
-    private static void primaryFill(String rootDirectory, String jdbcPropertiesFile, boolean parallel, boolean calculateMd5) throws IOException, SQLException {
-        log.info("Start primaryFill(parallel={})", parallel);
+    //работает до остановки процесса; каждая пачка - отдельная транзакция, прерывание теряет только текущую пачку
+    private static void watch(ScanSettings scanSettings,
+                              @Nonnull String jdbcPropertiesFile,
+                              boolean detailLog,
+                              long debounceMillis,
+                              int batchSize) throws IOException, SQLException {
+        log.info("Start watch({}, detailLog={}, debounce={} ms, batchSize={})", scanSettings, detailLog, debounceMillis, batchSize);
+        if (scanSettings.cacheFile != null) {
+            log.warn("Scan cache is not used in watch mode");
+        }
         Properties supportedExtensions = getSupportedExtensions();
         Set<String> unsupportedExtensions = new LinkedHashSet<>();
         String hostName = getHostName();
-        List<Media> mediaList = collectMediaFromDir(rootDirectory, parallel, supportedExtensions, unsupportedExtensions, hostName);
-        if (!unsupportedExtensions.isEmpty()) {
-            log.warn("Unsupported extensions: {}", unsupportedExtensions);
+        try (DirectoryWatcher watcher = new DirectoryWatcher(Paths.get(scanSettings.rootDirectory));
+             PgHelper.BatchMerger batchMerger = new PgHelper(log).openBatchMerger(jdbcPropertiesFile, hostName, detailLog)) {
+            while (true) {
+                List<Path> changed = watcher.awaitChanges(debounceMillis, batchSize);
+                MediaSource mediaSource = createMediaSource(scanSettings, null, (MediaPipeline.Output output) -> {
+                    for (Path file : changed) {
+                        Media media = readFile(file, supportedExtensions, unsupportedExtensions, hostName);
+                        if (media != null) {
+                            output.put(media);
+                        }
+                    }
+                });
+                List<Media> mediaList = collectMedia(mediaSource);
+                if (!mediaList.isEmpty()) {
+                    try {
+                        batchMerger.merge(mediaList);
+                    } catch (SQLException e) {
+                        log.error("Merge of {} files failed, retrying later: {}", mediaList.size(), e.toString());
+                        watcher.retry(changed);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Watch interrupted");
+        } finally {
+            if (!unsupportedExtensions.isEmpty()) {
+                log.warn("Unsupported extensions: {}", unsupportedExtensions);
+            }
         }
-        if (calculateMd5) {
-            calculateMd5(parallel, mediaList);
+    }
+
+    //файл из события наблюдения: мог уже исчезнуть или оказаться не файлом
+    @Nullable
+    private static Media readFile(Path file, Properties supportedExtensions, Set<String> unsupportedExtensions, String systemName) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.error("Error on file: {}: {}", file, e.toString());
+            return null;
         }
-        if (jdbcPropertiesFile != null) {
-            new PgHelper(log).fillEmptyDatabase(jdbcPropertiesFile, mediaList);
-        } else {
-            new JsonIOHelper().toJsonFile(mediaList);
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        return processMedia(file, attributes, supportedExtensions, unsupportedExtensions, systemName);
+    }
+
+    private static void primaryFill(ScanSettings scanSettings,
+                                    @Nullable String jdbcPropertiesFile,
+                                    boolean useCopy,
+                                    Path outputFile,
+                                    int chunkSize,
+                                    @Nullable Path journalFile) throws IOException, SQLException {
+        log.info("Start primaryFill({}, useCopy={}, journalFile={})", scanSettings, useCopy, journalFile);
+        Properties supportedExtensions = getSupportedExtensions();
+        Set<String> unsupportedExtensions = new LinkedHashSet<>();
+        String hostName = getHostName();
+        Path root = Paths.get(scanSettings.rootDirectory);
+        try (ScanCache scanCache = openScanCache(scanSettings);
+             ProgressJournal journal = journalFile != null ? ProgressJournal.open(journalFile, getJournalSettings(scanSettings)) : null) {
+            MediaSource scanSource = createMediaSource(scanSettings, scanCache, output -> walk(root, supportedExtensions, unsupportedExtensions, hostName,
+                                                                                                 withJournal(output, journal)));
+            //запись попадает в журнал раньше, чем в БД: после сбоя в БД нет файлов, которых нет в журнале
+            MediaSource mediaSource = journal == null ? scanSource : (MediaSink sink) -> scanSource.drainTo((Media media) -> {
+                journal.accept(media);
+                sink.accept(media);
+            });
+            boolean filled = true;
+            if (jdbcPropertiesFile != null) {
+                PgHelper pgHelper = new PgHelper(log);
+                filled = pgHelper.fillEmptyDatabase(jdbcPropertiesFile, mediaSource, useCopy, journal);
+                if (filled && scanSettings.calculateQuickHash) {
+                    pgHelper.resolveQuickHashCollisions(jdbcPropertiesFile, hostName, scanSettings.hashAlgorithm);
+                }
+            } else {
+                log.info("Exported {} files to {}", export(mediaSource, outputFile, chunkSize), outputFile);
+            }
+            if (journal != null && filled) {
+                journal.delete();
+            }
+        }
+        if (!unsupportedExtensions.isEmpty()) {
+            log.warn("Unsupported extensions: {}", unsupportedExtensions);
         }
         log.info("Finish primaryFill");
     }
 
-    private static String getHostName() throws UnknownHostException {
-        return InetAddress.getLocalHost().getHostName();
+    private static void convert(Path sourceFile, Path outputFile, int chunkSize) throws IOException, SQLException {
+        log.info("Start convert({} -> {})", sourceFile, outputFile);
+        long count = export(fileSource(sourceFile), outputFile, chunkSize);
+        log.info("Finish convert: {} files", count);
     }
 
-    private static List<Media> collectMediaFromFile(File sourceFile) throws IOException {
-        List<Media> mediaList;
-        try (ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(sourceFile.toPath()))) {
-            ZipEntry nextEntry = zipInputStream.getNextEntry();
-            mediaList = JsonIOHelper.parseMedia(zipInputStream);
+    //каталог из БД, если задан pg-settings-path, иначе из выгрузки
+    private static void findDuplicates(@Nullable String jdbcPropertiesFile,
+                                       @Nullable String sourceFile,
+                                       @Nullable HashAlgorithm hashAlgorithm,
+                                       Path outputFile) throws IOException, SQLException {
+        log.info("Start findDuplicates(hashAlgorithm={}, outputFile={})", hashAlgorithm, outputFile);
+        MediaSource mediaSource = jdbcPropertiesFile != null
+                                  ? new PgHelper(log).readCatalog(jdbcPropertiesFile)
+                                  : fileSource(Paths.get(sourceFile));
+        DuplicateFinder duplicateFinder = new DuplicateFinder(log, getHostName(), hashAlgorithm);
+        duplicateFinder.find(mediaSource);
+        duplicateFinder.writeReport(outputFile);
+        log.info("Finish findDuplicates");
+    }
+
+    //image == null - все группы похожих изображений каталога
+    private static void findSimilar(@Nullable String jdbcPropertiesFile,
+                                    @Nullable String sourceFile,
+                                    @Nullable Path image,
+                                    int distance,
+                                    Path outputFile) throws IOException, SQLException {
+        log.info("Start findSimilar(image={}, distance={}, outputFile={})", image, distance, outputFile);
+        MediaSource mediaSource = jdbcPropertiesFile != null
+                                  ? new PgHelper(log).readCatalog(jdbcPropertiesFile)
+                                  : fileSource(Paths.get(sourceFile));
+        SimilarFinder similarFinder = new SimilarFinder(log, distance);
+        if (image != null) {
+            String orientation = MetadataUtils.getMetadata(image, "i").get(MetaTag.Orientation.name());
+            Long hash = PerceptualHashUtils.getDHash(image, orientation);
+            if (hash == null) {
+                log.error("Can't calculate perceptual hash of {}", image);
+                return;
+            }
+            similarFinder.find(mediaSource, hash);
+        } else {
+            similarFinder.find(mediaSource);
         }
-        int size = mediaList.size();
-        log.info("Find {} files", size);
-        return mediaList;
+        similarFinder.writeReport(outputFile);
+        log.info("Finish findSimilar");
     }
 
-    private static List<Media> collectMediaFromDir(String rootDirectory,
-                                                   boolean parallel,
-                                                   Properties supportedExtensions,
-                                                   Set<String> unsupportedExtensions,
-                                                   String systemName) throws IOException {
-        List<Media> mediaList;
-        try (Stream<Path> stream = Files.walk(Paths.get(rootDirectory))) {
-            if (parallel) {
-                mediaList = stream.parallel()
-                                  .filter(IS_FILE)
-                                  .map((Path path) -> processMedia(path, supportedExtensions, unsupportedExtensions, systemName))
-                                  .filter(Objects::nonNull)
-                                  .sorted()
-                                  .collect(Collectors.toList());
+    //выгрузка любого формата, каждый проход открывает файл заново
+    private static MediaSource fileSource(Path sourceFile) {
+        return (MediaSink sink) -> {
+            if (SnapshotReader.isSnapshot(sourceFile)) {
+                try (SnapshotReader snapshotReader = SnapshotReader.open(sourceFile)) {
+                    drain(snapshotReader, sink);
+                }
+            } else if (ChunkedMediaReader.isManifest(sourceFile)) {
+                try (ChunkedMediaReader chunkedMediaReader = ChunkedMediaReader.open(sourceFile)) {
+                    drain(chunkedMediaReader, sink);
+                }
             } else {
-                mediaList = stream.filter(IS_FILE)
-                                  .map((Path path) -> processMedia(path, supportedExtensions, unsupportedExtensions, systemName))
-                                  .filter(Objects::nonNull)
-                                  .sorted()
-                                  .collect(Collectors.toList());
+                try (MediaReader mediaReader = MediaReader.open(sourceFile)) {
+                    drain(mediaReader, sink);
+                }
             }
+        };
+    }
 
+    private static void drain(Iterator<Media> iterator, MediaSink sink) throws IOException, SQLException {
+        while (iterator.hasNext()) {
+            sink.accept(iterator.next());
         }
-        int size = mediaList.size();
-        log.info("Find {} files", size);
-        extractMetadata(size, mediaList, parallel);
+    }
+
+    //формат выбирается по расширению: .mgs - бинарный снимок, .manifest.json - части с манифестом, иначе zip с JSON
+    private static long export(MediaSource mediaSource, Path outputFile, int chunkSize) throws IOException, SQLException {
+        if (ChunkedMediaReader.isManifest(outputFile)) {
+            try (ChunkedMediaWriter chunkedMediaWriter = new ChunkedMediaWriter(outputFile, chunkSize, Runtime.getRuntime().availableProcessors())) {
+                mediaSource.drainTo(chunkedMediaWriter);
+                chunkedMediaWriter.commit();
+                return chunkedMediaWriter.getCount();
+            }
+        }
+        if (SnapshotReader.isSnapshot(outputFile)) {
+            try (SnapshotWriter snapshotWriter = new SnapshotWriter(outputFile)) {
+                mediaSource.drainTo(snapshotWriter);
+                snapshotWriter.commit();
+                return snapshotWriter.getCount();
+            }
+        }
+        try (JsonMediaWriter jsonMediaWriter = new JsonMediaWriter(outputFile)) {
+            mediaSource.drainTo(jsonMediaWriter);
+            jsonMediaWriter.commit();
+            return jsonMediaWriter.getCount();
+        }
+    }
+
+    @Nullable
+    private static ScanCache openScanCache(ScanSettings scanSettings) throws IOException {
+        return scanSettings.cacheFile != null ? ScanCache.open(scanSettings.cacheFile) : null;
+    }
+
+    private static String getHostName() throws UnknownHostException {
+        return InetAddress.getLocalHost().getHostName();
+    }
+
+    private static List<Media> collectMedia(Iterator<Media> iterator) {
+        List<Media> mediaList = new ArrayList<>();
+        iterator.forEachRemaining(mediaList::add);
+        mediaList.sort(Media::compareTo);
+        log.info("Find {} files", mediaList.size());
         return mediaList;
     }
 
-    private static void extractMetadata(int size, List<Media> mediaList, boolean parallel) {
-        log.info("Start extracting metadata(parallel={})", parallel);
-        AtomicInteger progress = new AtomicInteger();
-        AtomicInteger toThreshold = new AtomicInteger();
-        final int threshold = getThreshold(size);
-        if (parallel) {
-            mediaList.parallelStream().forEach(media -> {
-                extractMetadataInner(size, media, progress, toThreshold, threshold);
+    private static List<Media> collectMedia(MediaSource source) throws IOException, SQLException {
+        List<Media> mediaList = new ArrayList<>();
+        source.drainTo(mediaList::add);
+        mediaList.sort(Media::compareTo);
+        log.info("Find {} files", mediaList.size());
+        return mediaList;
+    }
+
+    private static MediaSource createMediaSource(ScanSettings scanSettings,
+                                                 @Nullable ScanCache scanCache,
+                                                 Properties supportedExtensions,
+                                                 Set<String> unsupportedExtensions,
+                                                 String systemName) throws IOException {
+        Path root = Paths.get(scanSettings.rootDirectory);
+        return createMediaSource(scanSettings, scanCache, output -> walk(root, supportedExtensions, unsupportedExtensions, systemName, output));
+    }
+
+    //producer - источник файлов: обход дерева или файлы из событий наблюдения
+    private static MediaSource createMediaSource(ScanSettings scanSettings,
+                                                 @Nullable ScanCache scanCache,
+                                                 MediaPipeline.Producer producer) throws IOException {
+        MediaPipeline pipeline = new MediaPipeline(output -> producer.produce(withScanCache(output, scanCache, scanSettings)))
+                .stage("metadata", scanSettings.cpuThreads, (Media media) -> extractMetadata(media, scanSettings.perceptualHash));
+        if (scanSettings.calculateHash) {
+            pipeline.stage("hash", scanSettings.ioThreads, (Media media) -> {
+                media.calculateHash(scanSettings.hashAlgorithm);
+                return media;
             });
-        } else {
-            for (Media media : mediaList) {
-                extractMetadataInner(size, media, progress, toThreshold, threshold);
+        } else if (scanSettings.calculateQuickHash) {
+            pipeline.stage("hash", scanSettings.ioThreads, FillContentHelper::calculateQuickHash);
+        }
+        ThumbnailCache thumbnailCache = scanSettings.thumbnailDirectory != null
+                                        ? ThumbnailCache.open(scanSettings.thumbnailDirectory, scanSettings.thumbnailSizes, scanSettings.hashAlgorithm)
+                                        : null;
+        if (thumbnailCache != null) {
+            //файлы из кеша сканирования тоже, иначе включение миниатюр не затронет уже просканированные
+            pipeline.stageIncludingSkipped("thumbnail", scanSettings.thumbnailThreads, thumbnailCache::process);
+        }
+        if (scanCache == null && thumbnailCache == null) {
+            return pipeline;
+        }
+        return (MediaSink sink) -> {
+            pipeline.drainTo((Media media) -> {
+                if (scanCache != null) {
+                    scanCache.store(media, scanSettings.perceptualHash);
+                }
+                sink.accept(media);
+            });
+            if (scanCache != null) {
+                scanCache.commit();
+            }
+            if (thumbnailCache != null) {
+                log.info("Thumbnails: {}", thumbnailCache);
             }
+        };
+    }
+
+    //файлы из журнала прерванного запуска проходят конвейер без обработки, в прежнем порядке обхода
+    private static MediaPipeline.Output withJournal(MediaPipeline.Output output, @Nullable ProgressJournal journal) {
+        if (journal == null) {
+            return output;
         }
-        log.info("Finish extracting metadata");
+        return new MediaPipeline.Output() {
+            @Override
+            public void put(Media media) throws InterruptedException {
+                if (journal.apply(media)) {
+                    output.skip(media);
+                } else {
+                    output.put(media);
+                }
+            }
+
+            @Override
+            public void skip(Media media) throws InterruptedException {
+                output.skip(media);
+            }
+        };
     }
 
-    private static int getThreshold(int size) {
-        final int threshold;
-        if (size < 1000) {
-            threshold = size / 25;
-        } else if (size < 10000) {
-            threshold = size / 125;
-        } else {
-            threshold = size / 500;
+    //параметры, от которых зависят записи журнала
+    private static String getJournalSettings(ScanSettings scanSettings) {
+        return "calculateHash=" + (scanSettings.calculateQuickHash ? QUICK_HASH : String.valueOf(scanSettings.calculateHash))
+               + ", hashAlgorithm=" + scanSettings.hashAlgorithm
+               + ", perceptualHash=" + scanSettings.perceptualHash;
+    }
+
+    private static MediaPipeline.Output withScanCache(MediaPipeline.Output output, @Nullable ScanCache scanCache, ScanSettings scanSettings) {
+        if (scanCache == null) {
+            return output;
         }
-        return threshold;
+        return new MediaPipeline.Output() {
+            @Override
+            public void put(Media media) throws InterruptedException {
+                if (scanCache.apply(media, scanSettings.calculateHash ? scanSettings.hashAlgorithm : null, scanSettings.calculateQuickHash,
+                                   scanSettings.perceptualHash)) {
+                    output.skip(media);
+                } else {
+                    output.put(media);
+                }
+            }
+
+            @Override
+            public void skip(Media media) throws InterruptedException {
+                output.skip(media);
+            }
+        };
     }
 
-    private static void extractMetadataInner(int size, Media media, AtomicInteger progress, AtomicInteger toThreshold, int threshold) {
+    static void walk(Path root,
+                     Properties supportedExtensions,
+                     Set<String> unsupportedExtensions,
+                     String systemName,
+                     MediaPipeline.Output output) throws IOException, InterruptedException {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    long start = System.nanoTime();
+                    BasicFileAttributes fileAttributes = attributes;
+                    if (attributes.isSymbolicLink()) {
+                        try {
+                            fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        } catch (IOException e) {
+                            log.error("Error on file: {}: {}", file, e.toString());
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }
+                    if (!fileAttributes.isDirectory()) {
+                        Media media = processMedia(file, fileAttributes, supportedExtensions, unsupportedExtensions, systemName);
+                        //без ожидания места в очереди
+                        WALK_TIMER.record(start);
+                        if (media != null) {
+                            try {
+                                output.put(media);
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    log.error("Error on file: {}: {}", file, e.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static Media extractMetadata(Media media, boolean perceptualHash) {
+        long start = System.nanoTime();
         Map<String, String> metadata = MetadataUtils.getMetadata(media.getLocalPath(), media.getType());
         if (!metadata.isEmpty()) {
             media.setMetadata(metadata);
@@ -245,11 +681,14 @@ public class FillContentHelper {
                 media.setCreateDate(createDate);
             }
         }
-        progress.incrementAndGet();
-        if (toThreshold.incrementAndGet() > threshold) {
-            toThreshold.set(0);
-            log.info("Progress {}/{}", progress, size);
+        METADATA_TIMER.record(start);
+        //файл только что прочитан для метаданных и, скорее всего, в кеше ОС
+        if (perceptualHash && "i".equals(media.getType())) {
+            start = System.nanoTime();
+            media.setPerceptualHash(PerceptualHashUtils.getDHash(media.getLocalPath(), metadata.get(MetaTag.Orientation.name())));
+            PERCEPTUAL_HASH_TIMER.record(start);
         }
+        return media;
     }
 
     private static Properties getSupportedExtensions() throws IOException {
@@ -260,27 +699,17 @@ public class FillContentHelper {
         return supportedExtensions;
     }
 
-    private static void calculateMd5(boolean parallel, List<Media> mediaList) {
-        int size = mediaList.size();
-        log.info("Calculate MD5 for {} files", size);
-        Instant begin = Instant.now();
-        AtomicInteger progress = new AtomicInteger();
-        AtomicInteger toThreshold = new AtomicInteger();
-        final int threshold = getThreshold(size);
-        if (parallel) {
-            mediaList.parallelStream()
-                     .forEach(media -> media.calculateMd5(threshold, toThreshold, progress, size));
-        } else {
-            for (Media media : mediaList) {
-                media.calculateMd5(threshold, toThreshold, progress, size);
-            }
-        }
-        Duration duration = Duration.between(begin, Instant.now());
-        log.info("MD5 calculated at {}", duration.toString().replace("PT", ""));
+    private static Media calculateQuickHash(Media media) {
+        media.calculateQuickHash();
+        return media;
     }
 
     @Nullable
-    private static Media processMedia(Path path, Properties supportedExtensions, Set<String> unsupportedExtensions, String systemName) {
+    private static Media processMedia(Path path,
+                                      BasicFileAttributes attributes,
+                                      Properties supportedExtensions,
+                                      Set<String> unsupportedExtensions,
+                                      String systemName) {
         String fileName = path.getFileName().toString();
         String extension = getExtension(fileName);
         String type = supportedExtensions.getProperty(extension);
@@ -288,30 +717,23 @@ public class FillContentHelper {
             unsupportedExtensions.add(extension);
             return null;
         } else {
-            return getMedia(path, fileName, type, systemName);
+            return getMedia(path, attributes, fileName, type, systemName);
         }
     }
 
-    @Nullable
-    private static Media getMedia(Path path, String fileName, String type, String systemName) {
-        try {
-            Timestamp createDate = DateUtils.getCreateDate(Collections.emptyMap(), fileName);
-            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
-            if (createDate == null) {
-                FileTime creationTime = attributes.creationTime();
-                createDate = Timestamp.from(creationTime.toInstant());
-            }
-            Timestamp lastModify = Timestamp.from(attributes.lastModifiedTime().toInstant());
-            if (lastModify.before(createDate)) {
-                createDate = lastModify;
-            }
-            Path absolutePath = path.toAbsolutePath();
-            Map<String, String> paths = Collections.singletonMap(systemName, absolutePath.toString());
-            return new Media(fileName, createDate, lastModify, paths, null, path.toFile().length(), type, Collections.emptyMap(), absolutePath);
-        } catch (IOException e) {
-            log.error("Error on file: {}: {}", path, e.toString());
-            return null;
+    private static Media getMedia(Path path, BasicFileAttributes attributes, String fileName, String type, String systemName) {
+        Timestamp createDate = DateUtils.getCreateDate(Collections.emptyMap(), fileName);
+        if (createDate == null) {
+            FileTime creationTime = attributes.creationTime();
+            createDate = Timestamp.from(creationTime.toInstant());
+        }
+        Timestamp lastModify = Timestamp.from(attributes.lastModifiedTime().toInstant());
+        if (lastModify.before(createDate)) {
+            createDate = lastModify;
         }
+        Path absolutePath = path.toAbsolutePath();
+        Map<String, String> paths = Collections.singletonMap(systemName, absolutePath.toString());
+        return new Media(fileName, createDate, lastModify, paths, null, attributes.size(), type, Collections.emptyMap(), absolutePath);
     }
 
 
@@ -0,0 +1,290 @@
+package ru.alejov.media.gallery.init;
+
+import ru.alejov.media.gallery.Media;
+import ru.alejov.media.gallery.MediaSink;
+import ru.alejov.media.gallery.MediaSource;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.log;
+
+public class MediaPipeline implements MediaSource {
+
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final int PROGRESS_STEP = 1000;
+    private static final Media END = new Media("", null, null, Collections.emptyMap(), null, 0, "", Collections.emptyMap(), null);
+
+    private final Producer producer;
+    private final Stage walkStage = new Stage("walk", 1, null, false);
+    private final List<Stage> stages = new ArrayList<>();
+    private final Stage sinkStage = new Stage("sink", 1, null, false);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public MediaPipeline(Producer producer) {
+        this.producer = producer;
+    }
+
+    public MediaPipeline stage(String name, int threads, Processor processor) {
+        if (!stages.isEmpty() && stages.get(stages.size() - 1).includeSkipped) {
+            throw new IllegalStateException("Stage " + name + " after a stage for skipped files");
+        }
+        stages.add(new Stage(name, Math.max(1, threads), processor, false));
+        return this;
+    }
+
+    //этап, через который проходят и файлы, переданные через Output.skip; такие этапы идут последними
+    public MediaPipeline stageIncludingSkipped(String name, int threads, Processor processor) {
+        stages.add(new Stage(name, Math.max(1, threads), processor, true));
+        return this;
+    }
+
+    @Override
+    public void drainTo(MediaSink sink) throws IOException, SQLException {
+        Instant begin = Instant.now();
+        long beginNanos = System.nanoTime();
+        List<ExecutorService> executors = new ArrayList<>();
+        long count = 0;
+        long waitNanos = 0;
+        long busyNanos = 0;
+        try {
+            BlockingQueue<Media> producerQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            BlockingQueue<Media> queue = producerQueue;
+            BlockingQueue<Media> skipQueue = null;
+            for (Stage stage : stages) {
+                BlockingQueue<Media> input = queue;
+                if (stage.includeSkipped && skipQueue == null) {
+                    skipQueue = input;
+                }
+                BlockingQueue<Media> output = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                ExecutorService stageExecutor = Executors.newFixedThreadPool(stage.threads, threadFactory(stage.name));
+                executors.add(stageExecutor);
+                AtomicInteger running = new AtomicInteger(stage.threads);
+                for (int i = 0; i < stage.threads; i++) {
+                    stageExecutor.execute(() -> runStage(stage, input, output, running));
+                }
+                queue = output;
+            }
+            BlockingQueue<Media> skipTo = skipQueue != null ? skipQueue : queue;
+            ExecutorService producerExecutor = Executors.newSingleThreadExecutor(threadFactory("walk"));
+            executors.add(producerExecutor);
+            producerExecutor.execute(() -> runProducer(producerQueue, skipTo));
+            while (true) {
+                long start = System.nanoTime();
+                Media media = queue.take();
+                long taken = System.nanoTime();
+                waitNanos += taken - start;
+                if (media == END) {
+                    break;
+                }
+                sink.accept(media);
+                busyNanos += System.nanoTime() - taken;
+                ++count;
+                sinkStage.processed.incrementAndGet();
+                if (count % PROGRESS_STEP == 0) {
+                    log.info("Progress {} ({})", count, stagesProgress());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline interrupted");
+        } finally {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+            sinkStage.addTimes(busyNanos, waitNanos, 0);
+        }
+        Throwable throwable = failure.get();
+        if (throwable instanceof IOException) {
+            throw (IOException) throwable;
+        } else if (throwable instanceof Error) {
+            throw (Error) throwable;
+        } else if (throwable != null) {
+            throw new IOException(throwable);
+        }
+        Duration duration = Duration.between(begin, Instant.now());
+        log.info("Pipeline processed {} files at {} ({})", count, duration.toString().replace("PT", ""), stagesProgress());
+        long wallNanos = System.nanoTime() - beginNanos;
+        logUtilization(walkStage, wallNanos);
+        for (Stage stage : stages) {
+            logUtilization(stage, wallNanos);
+        }
+        logUtilization(sinkStage, wallNanos);
+    }
+
+    private static void logUtilization(Stage stage, long wallNanos) {
+        double total = (double) wallNanos * stage.threads;
+        if (total <= 0) {
+            return;
+        }
+        log.info("Stage {}: threads={}, files={}, busy={}%, waiting for input={}%, blocked on output={}%",
+                 stage.name, stage.threads, stage.processed.get(),
+                 percent(stage.busyNanos.get(), total), percent(stage.inputWaitNanos.get(), total), percent(stage.outputWaitNanos.get(), total));
+    }
+
+    private static String percent(long nanos, double total) {
+        return String.format(Locale.ROOT, "%.1f", nanos * 100 / total);
+    }
+
+    private void runProducer(BlockingQueue<Media> output, BlockingQueue<Media> skipQueue) {
+        long begin = System.nanoTime();
+        AtomicLong outputWaitNanos = new AtomicLong();
+        try {
+            producer.produce(new Output() {
+                @Override
+                public void put(Media media) throws InterruptedException {
+                    put(output, media);
+                }
+
+                @Override
+                public void skip(Media media) throws InterruptedException {
+                    put(skipQueue, media);
+                }
+
+                private void put(BlockingQueue<Media> queue, Media media) throws InterruptedException {
+                    long start = System.nanoTime();
+                    queue.put(media);
+                    outputWaitNanos.addAndGet(System.nanoTime() - start);
+                    walkStage.processed.incrementAndGet();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            walkStage.addTimes(System.nanoTime() - begin - outputWaitNanos.get(), 0, outputWaitNanos.get());
+        }
+        putEnd(output);
+    }
+
+    private void runStage(Stage stage, BlockingQueue<Media> input, BlockingQueue<Media> output, AtomicInteger running) {
+        long busyNanos = 0;
+        long inputWaitNanos = 0;
+        long outputWaitNanos = 0;
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Media media = input.take();
+                long taken = System.nanoTime();
+                inputWaitNanos += taken - start;
+                if (media == END) {
+                    //остальные потоки этапа тоже должны увидеть конец очереди
+                    input.put(END);
+                    break;
+                }
+                Media result;
+                try {
+                    result = stage.processor.process(media);
+                } catch (RuntimeException e) {
+                    log.error("Stage {} error on file {}: {}", stage.name, media.getLocalPath(), e.toString());
+                    result = media;
+                }
+                stage.processed.incrementAndGet();
+                long processed = System.nanoTime();
+                busyNanos += processed - taken;
+                if (result != null) {
+                    output.put(result);
+                    outputWaitNanos += System.nanoTime() - processed;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            //Error этапа (нехватка памяти на большом изображении и т.п.): поток завершается, ошибку бросит drainTo
+            log.error("Stage {} failed: {}", stage.name, e.toString());
+            failure.compareAndSet(null, e);
+        } finally {
+            stage.addTimes(busyNanos, inputWaitNanos, outputWaitNanos);
+            //конец очереди передается в любом случае, иначе следующий этап и приемник ждут вечно
+            if (running.decrementAndGet() == 0) {
+                putEnd(output);
+            }
+        }
+    }
+
+    private static void putEnd(BlockingQueue<Media> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String stagesProgress() {
+        StringBuilder stringBuilder = new StringBuilder("walk=").append(walkStage.processed.get());
+        for (Stage stage : stages) {
+            stringBuilder.append(", ").append(stage.name).append('=').append(stage.processed.get());
+        }
+        return stringBuilder.toString();
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public interface Producer {
+
+        void produce(Output output) throws IOException, InterruptedException;
+    }
+
+    public interface Output {
+
+        void put(Media media) throws InterruptedException;
+
+        //передать сразу в приемник, минуя все этапы, кроме stageIncludingSkipped
+        void skip(Media media) throws InterruptedException;
+    }
+
+    public interface Processor {
+
+        @Nullable
+        Media process(Media media);
+    }
+
+    private static class Stage {
+        private final String name;
+        private final int threads;
+        private final Processor processor;
+        private final boolean includeSkipped;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong inputWaitNanos = new AtomicLong();
+        private final AtomicLong outputWaitNanos = new AtomicLong();
+
+        private Stage(String name, int threads, Processor processor, boolean includeSkipped) {
+            this.name = name;
+            this.threads = threads;
+            this.processor = processor;
+            this.includeSkipped = includeSkipped;
+        }
+
+        private void addTimes(long busy, long inputWait, long outputWait) {
+            busyNanos.addAndGet(busy);
+            inputWaitNanos.addAndGet(inputWait);
+            outputWaitNanos.addAndGet(outputWait);
+        }
+    }
+}
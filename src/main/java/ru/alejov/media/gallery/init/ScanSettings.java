@@ -0,0 +1,82 @@
+package ru.alejov.media.gallery.init;
+
+import ru.alejov.media.gallery.HashAlgorithm;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+import static ru.alejov.media.gallery.init.FillContentHelper.CACHE_FILE;
+import static ru.alejov.media.gallery.init.FillContentHelper.CALCULATE_HASH;
+import static ru.alejov.media.gallery.init.FillContentHelper.CPU_THREADS;
+import static ru.alejov.media.gallery.init.FillContentHelper.HASH_ALGORITHM;
+import static ru.alejov.media.gallery.init.FillContentHelper.IO_THREADS;
+import static ru.alejov.media.gallery.init.FillContentHelper.PARALLEL;
+import static ru.alejov.media.gallery.init.FillContentHelper.PERCEPTUAL_HASH;
+import static ru.alejov.media.gallery.init.FillContentHelper.QUICK_HASH;
+import static ru.alejov.media.gallery.init.FillContentHelper.ROOT_DIR;
+import static ru.alejov.media.gallery.init.FillContentHelper.THUMBNAIL_DIR;
+import static ru.alejov.media.gallery.init.FillContentHelper.THUMBNAIL_SIZES;
+import static ru.alejov.media.gallery.init.FillContentHelper.THUMBNAIL_THREADS;
+
+class ScanSettings {
+    final String rootDirectory;
+    final int cpuThreads;
+    final int ioThreads;
+    final boolean calculateHash;
+    final boolean calculateQuickHash;
+    final HashAlgorithm hashAlgorithm;
+    final boolean perceptualHash;
+    @Nullable
+    final Path cacheFile;
+    @Nullable
+    final Path thumbnailDirectory;
+    final int[] thumbnailSizes;
+    final int thumbnailThreads;
+
+    ScanSettings(Map<String, String> params) {
+        boolean parallel = Boolean.parseBoolean(params.getOrDefault(PARALLEL, "false"));
+        this.rootDirectory = params.get(ROOT_DIR);
+        this.cpuThreads = getThreads(params, CPU_THREADS, parallel, 1);
+        this.ioThreads = getThreads(params, IO_THREADS, parallel, 2);
+        //true - полный хеш каждого файла, quick - быстрый отпечаток, полный хеш только при совпадениях
+        String calculateHash = params.getOrDefault(CALCULATE_HASH, "false");
+        this.calculateHash = Boolean.parseBoolean(calculateHash);
+        this.calculateQuickHash = QUICK_HASH.equalsIgnoreCase(calculateHash);
+        this.hashAlgorithm = HashAlgorithm.of(params.getOrDefault(HASH_ALGORITHM, HashAlgorithm.XXH64.name()));
+        this.perceptualHash = Boolean.parseBoolean(params.getOrDefault(PERCEPTUAL_HASH, "false"));
+        String cacheFile = params.get(CACHE_FILE);
+        this.cacheFile = cacheFile != null ? Paths.get(cacheFile) : null;
+        String thumbnailDirectory = params.get(THUMBNAIL_DIR);
+        this.thumbnailDirectory = thumbnailDirectory != null ? Paths.get(thumbnailDirectory) : null;
+        this.thumbnailSizes = Arrays.stream(params.getOrDefault(THUMBNAIL_SIZES, "256,1024").split(","))
+                                    .mapToInt((String size) -> Integer.parseInt(size.trim()))
+                                    .toArray();
+        //отдельно от cpu-threads: миниатюры можно ограничить, не замедляя метаданные
+        this.thumbnailThreads = getThreads(params, THUMBNAIL_THREADS, parallel, 1);
+    }
+
+    private static int getThreads(Map<String, String> params, String name, boolean parallel, int perProcessor) {
+        String threads = params.get(name);
+        if (threads != null) {
+            return Math.max(1, Integer.parseInt(threads));
+        }
+        return parallel ? Runtime.getRuntime().availableProcessors() * perProcessor : 1;
+    }
+
+    @Override
+    public String toString() {
+        return "cpuThreads=" + cpuThreads
+               + ", ioThreads=" + ioThreads
+               + ", calculateHash=" + (calculateQuickHash ? QUICK_HASH : String.valueOf(calculateHash))
+               + ", hashAlgorithm=" + hashAlgorithm
+               + ", perceptualHash=" + perceptualHash
+               + ", cacheFile=" + cacheFile
+               + (thumbnailDirectory != null
+                  ? ", thumbnailDirectory=" + thumbnailDirectory + ", thumbnailSizes=" + Arrays.toString(thumbnailSizes)
+                    + ", thumbnailThreads=" + thumbnailThreads
+                  : "");
+    }
+}
@@ -0,0 +1,91 @@
+package ru.alejov.media.gallery;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * DateUtils must give the same result as the regex implementation (LegacyDateUtils) it replaced.
+ */
+class DateUtilsTest {
+    private static final Map<String, String> NO_TAGS = Collections.emptyMap();
+
+    @Test
+    void dateTimeInName() {
+        assertDate("2021-10-02 14:34:34", NO_TAGS, "IMG_20211002_143434.jpg");
+        assertDate("2021-10-02 14:34:34", NO_TAGS, "PXL_20211002_143434123.jpg");
+        assertDate("2021-10-02 14:34:34", NO_TAGS, "PXL_20211002_143434123");
+        //последнее вхождение
+        assertDate("2022-01-01 10:00:00", NO_TAGS, "20211002_143434_20220101_100000.jpg");
+    }
+
+    @Test
+    void dateInName() {
+        assertDate("2021-10-02 00:00:00", NO_TAGS, "IMG-20211002-WA0001.jpg");
+        assertDate("2020-01-01 00:00:00", NO_TAGS, "Screenshot_20200101-101010.png");
+        assertDate(null, NO_TAGS, "DSC_0001.JPG");
+        assertDate(null, NO_TAGS, "IMG_2021100.jpg");
+    }
+
+    @Test
+    void dayClampedToEndOfMonth() {
+        assertDate("2021-02-28 12:00:00", NO_TAGS, "IMG_20210231_120000.jpg");
+        assertDate("2020-02-29 00:00:00", NO_TAGS, "IMG-20200231-WA0001.jpg");
+        assertDate("2021-04-30 00:00:00", NO_TAGS, "IMG-20210431-WA0001.jpg");
+        assertDate(null, NO_TAGS, "IMG-20210432-WA0001.jpg");
+        assertDate(null, NO_TAGS, "IMG-20211301-WA0001.jpg");
+    }
+
+    @Test
+    void endOfDayRollsOverToNextMidnight() {
+        assertDate("2021-10-03 00:00:00", NO_TAGS, "IMG_20211002_240000.jpg");
+        assertDate("2022-01-01 00:00:00", NO_TAGS, "IMG_20211231_240000.jpg");
+        assertDate(null, NO_TAGS, "IMG_20211002_240001.jpg");
+        assertDate(null, NO_TAGS, "IMG_20211002_143460.jpg");
+    }
+
+    @Test
+    void futureDateRejected() {
+        String future = LocalDate.now().plusDays(3).format(DateTimeFormatter.BASIC_ISO_DATE);
+        String tomorrow = LocalDate.now().plusDays(1).format(DateTimeFormatter.BASIC_ISO_DATE);
+        assertDate(null, NO_TAGS, "IMG_" + future + "_120000.jpg");
+        assertDate(null, NO_TAGS, "IMG-" + future + "-WA0001.jpg");
+        assertSameAsLegacy(NO_TAGS, "IMG-" + tomorrow + "-WA0001.jpg");
+    }
+
+    @Test
+    void exif() {
+        Map<String, String> tags = Collections.singletonMap(MetaTag.DateTimeOriginal.name(), "20190506 070809");
+        Map<String, String> quoted = Collections.singletonMap(MetaTag.DateTimeOriginal.name(), "'20190506 070809'");
+        Map<String, String> invalid = Collections.singletonMap(MetaTag.DateTimeOriginal.name(), "2019:05:06 07:08:09");
+        assertDate("2019-05-06 07:08:09", tags, "DSC_0001.JPG");
+        assertDate("2019-05-06 07:08:09", quoted, "DSC_0001.JPG");
+        assertDate("2019-05-06 07:08:09", quoted, "IMG-20211002-WA0001.jpg");
+        assertDate("2021-10-02 00:00:00", invalid, "IMG-20211002-WA0001.jpg");
+        //дата со временем в имени важнее EXIF, даже неверная
+        assertDate("2021-10-02 14:34:34", quoted, "IMG_20211002_143434.jpg");
+        assertDate(null, quoted, "IMG_20211002_246000.jpg");
+    }
+
+    private static void assertDate(String expected, Map<String, String> tags, String fileName) {
+        Timestamp actual = assertSameAsLegacy(tags, fileName);
+        if (expected == null) {
+            assertNull(actual, fileName);
+        } else {
+            assertEquals(Timestamp.valueOf(expected), actual, fileName);
+        }
+    }
+
+    private static Timestamp assertSameAsLegacy(Map<String, String> tags, String fileName) {
+        Timestamp actual = DateUtils.getCreateDate(tags, fileName);
+        assertEquals(LegacyDateUtils.getCreateDate(tags, fileName), actual, () -> fileName + " " + tags);
+        return actual;
+    }
+}
@@ -0,0 +1,64 @@
+package ru.alejov.media.gallery;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.annotation.Nullable;
+import java.sql.Timestamp;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regex-based DateUtils.getCreateDate kept as the reference for DateUtilsTest and DateUtilsBenchmark
+ * (the jmh source set includes test classes).
+ */
+final class LegacyDateUtils {
+    private static final Pattern DATE_FULL_PATTERN = Pattern.compile(".*([0-9]{8}_[0-9]{6}).*");
+    private static final Pattern DATE_SHORT_PATTERN = Pattern.compile(".*([0-9]{8}).*");
+    private static final DateTimeFormatter DATE_FULL_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final DateTimeFormatter DATE_FULL_FORMAT2 = DateTimeFormatter.ofPattern("yyyyMMdd HHmmss");
+    private static final DateTimeFormatter DATE_SHORT_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private LegacyDateUtils() {
+    }
+
+    @Nullable
+    static Timestamp getCreateDate(Map<String, String> tags, String fileName) {
+        Matcher dateFullMatcher = DATE_FULL_PATTERN.matcher(fileName);
+        if (dateFullMatcher.find()) {
+            String dateFull = dateFullMatcher.group(1);
+            try {
+                LocalDateTime localDateTime = LocalDateTime.parse(dateFull, DATE_FULL_FORMAT);
+                if (localDateTime.isAfter(LocalDateTime.now().plusDays(1))) {
+                    throw new DateTimeException("Incorrect date: " + dateFull);
+                }
+                return Timestamp.valueOf(localDateTime);
+            } catch (DateTimeException ignored) {
+            }
+            return null;
+        }
+        String dateTimeOriginal = tags.get(MetaTag.DateTimeOriginal.name());
+        if (dateTimeOriginal != null) {
+            try {
+                return Timestamp.valueOf(LocalDateTime.parse(StringUtils.remove(dateTimeOriginal, '\''), DATE_FULL_FORMAT2));
+            } catch (DateTimeException ignored) {
+            }
+        }
+        Matcher dateShortMatcher = DATE_SHORT_PATTERN.matcher(fileName);
+        if (dateShortMatcher.find()) {
+            String dateShort = dateShortMatcher.group(1);
+            try {
+                LocalDate localDate = LocalDate.parse(dateShort, DATE_SHORT_FORMAT);
+                if (!localDate.isAfter(LocalDate.now().plusDays(1))) {
+                    return Timestamp.valueOf(localDate.atStartOfDay());
+                }
+            } catch (DateTimeException ignored) {
+            }
+        }
+        return null;
+    }
+}
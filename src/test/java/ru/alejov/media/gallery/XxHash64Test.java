@@ -0,0 +1,81 @@
+package ru.alejov.media.gallery;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * XxHash64 against the reference XXH64 (seed 0) vectors, and streaming in pieces against one-shot hashing.
+ */
+class XxHash64Test {
+
+    @Test
+    void referenceVectors() {
+        assertEquals("ef46db3751d8e999", hex(hash("")));
+        assertEquals("d24ec4f1a98c6e5b", hex(hash("a")));
+        assertEquals("44bc2cf5ad770999", hex(hash("abc")));
+        //39 байт: полная полоса и хвост из 8, 4 и 1 байта
+        assertEquals("fbcea83c8a378bf1", hex(hash("Nobody inspects the spammish repetition")));
+    }
+
+    @Test
+    void splitBuffersMatchOneShot() {
+        byte[] data = new byte[200];
+        new Random(1).nextBytes(data);
+        for (int length : new int[]{0, 1, 31, 32, 33, 64, 100, 200}) {
+            byte[] expected = hash(ByteBuffer.wrap(data, 0, length));
+            for (int split = 0; split <= length; split++) {
+                XxHash64 hasher = new XxHash64();
+                hasher.update(ByteBuffer.wrap(data, 0, split));
+                hasher.update(ByteBuffer.wrap(data, split, length - split));
+                assertArrayEquals(expected, hasher.digest(), "length " + length + ", split " + split);
+            }
+            XxHash64 hasher = new XxHash64();
+            for (int i = 0; i < length; i++) {
+                hasher.update(ByteBuffer.wrap(data, i, 1));
+            }
+            assertArrayEquals(expected, hasher.digest(), "length " + length + " byte by byte");
+        }
+    }
+
+    @Test
+    void directBufferAndReuse() {
+        byte[] data = new byte[1000];
+        new Random(2).nextBytes(data);
+        byte[] expected = hash(ByteBuffer.wrap(data));
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 3);
+        direct.position(3);
+        direct.put(data);
+        direct.position(3);
+        XxHash64 hasher = new XxHash64();
+        hasher.update(direct);
+        assertEquals(direct.limit(), direct.position());
+        assertArrayEquals(expected, hasher.digest());
+        //digest() сбрасывает состояние
+        hasher.update(ByteBuffer.wrap(data));
+        assertArrayEquals(expected, hasher.digest());
+    }
+
+    private static byte[] hash(String s) {
+        return hash(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] hash(ByteBuffer buffer) {
+        XxHash64 hasher = new XxHash64();
+        hasher.update(buffer);
+        return hasher.digest();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}